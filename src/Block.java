@@ -1,6 +1,7 @@
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public class Block {
@@ -27,10 +28,18 @@ public class Block {
       return hash;
    }
 
+   public void setHash(byte[] h) {
+      hash = h;
+   }
+
    public byte[] getPrevBlockHash() {
       return prevBlockHash;
    }
 
+   public BlockHeader getHeader() {
+      return new BlockHeader(hash, prevBlockHash);
+   }
+
    public ArrayList<Transaction> getTransactions() {
       return txs;
    }
@@ -61,12 +70,22 @@ public class Block {
    }
 
    public void finalize() {
+      hash = computeHash();
+   }
+
+   // returns true if the stored hash is the hash of the block's contents
+   public boolean hasValidHash() {
+      return hash != null && Arrays.equals(hash, computeHash());
+   }
+
+   private byte[] computeHash() {
       try {
          MessageDigest md = MessageDigest.getInstance("SHA-256");
          md.update(getRawBlock());
-         hash = md.digest();
+         return md.digest();
       } catch(NoSuchAlgorithmException x) {
          x.printStackTrace(System.err);
+         return null;
       }
    }
 }
@@ -1,5 +1,20 @@
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /* Block Chain should maintain only limited block nodes to satisfy the functions
    You should not have the all the blocks added to the block chain in memory 
@@ -8,12 +23,36 @@ import java.util.HashMap;
 
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
+    // bounds on the blocks held back while waiting for their parent
+    public static final int MAX_ORPHAN_BLOCKS = 100;
+    public static final long MAX_ORPHAN_AGE_MILLIS = 20 * 60 * 1000;
+    // number of known-invalid block hashes remembered
+    public static final int MAX_INVALID_BLOCKS = 1000;
     
-    private ArrayList<BlockNode> heads;  
+    // nodes without children, plus the same nodes ordered for fork choice:
+    // greatest height first, and among equal heights the one that arrived first
+    private HashSet<BlockNode> tips;
+    private TreeSet<BlockNode> tipsByHeight;
     private HashMap<ByteArrayWrapper, BlockNode> H;    
+    // every node still held, grouped by height, so old levels can be pruned
+    private TreeMap<Integer, ArrayList<BlockNode>> levels;
     private int height;   
     private BlockNode maxHeightBlock;    
+    // what readers see; replaced, never changed, after each commit
+    private volatile Snapshot snapshot;
     private TransactionPool txPool;
+    private OrphanBlockPool orphans;
+    // hashes of blocks that failed validation, least recently seen first
+    private LinkedHashMap<ByteArrayWrapper, Boolean> invalidBlocks;
+    private long arrivals;
+    // where accepted blocks are written, or null to keep none
+    private BlockStore store;
+    // locations of the best chain's transactions, or null to keep none
+    private TxIndex txIndex;
+    // the assume-valid block, or null, and the hashes of it and its 
+    // ancestors proven from their bodies but not yet connected
+    private byte[] assumeValid;
+    private HashSet<ByteArrayWrapper> assumedValid = new HashSet<ByteArrayWrapper>();
 
     // all information required in handling a block in block chain
     private class BlockNode {
@@ -21,6 +60,8 @@ public class BlockChain {
         public BlockNode parent;
         public ArrayList<BlockNode> children;
         public int height;
+        // arrival order, the tiebreak between tips of equal height
+        public long seq;
         // utxo pool for making a new block on top of this block
         private UTXOPool uPool;
 
@@ -29,16 +70,18 @@ public class BlockChain {
             this.parent = parent;
             children = new ArrayList<BlockNode>();
             this.uPool = uPool;
+            seq = arrivals++;
             if (parent != null) {
                 height = parent.height + 1;
-                parent.children.add(this);
             } else {
                 height = 1;
             }
         }
 
-        public UTXOPool getUTXOPoolCopy() {
-            return new UTXOPool(uPool);
+        // attach this node under its parent, once it is known to be valid
+        public void link() {
+            if (parent != null)
+                parent.children.add(this);
         }
     }
 
@@ -46,31 +89,195 @@ public class BlockChain {
      * Assume genesis block is a valid block
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, null);
+    }
+
+    /* create a block chain with just a genesis block that also appends 
+     * every block it accepts, starting with the genesis block, to store
+     */
+    public BlockChain(Block genesisBlock, BlockStore store) {
+        this(genesisBlock, store, null);
+    }
+
+    /* create a block chain with just a genesis block that appends accepted 
+     * blocks to store and keeps txIndex in step with the best chain; either 
+     * may be null
+     */
+    public BlockChain(Block genesisBlock, BlockStore store, TxIndex txIndex) {
         UTXOPool uPool = new UTXOPool();      
         Transaction coinbase = genesisBlock.getCoinbase();      
         UTXO utxoCoinbase = new UTXO(coinbase.getHash(), 0);      
         uPool.addUTXO(utxoCoinbase, coinbase.getOutput(0));      
         BlockNode genesis = new BlockNode(genesisBlock, null, uPool);      
-        heads = new ArrayList<BlockNode>();      
-        heads.add(genesis);      
+        tips = new HashSet<BlockNode>();
+        tipsByHeight = new TreeSet<BlockNode>(new Comparator<BlockNode>() {
+            public int compare(BlockNode a, BlockNode b) {
+                if (a.height != b.height)
+                    return a.height > b.height ? -1 : 1;
+                return Long.compare(a.seq, b.seq);
+            }
+        });
+        addTip(genesis);
         H = new HashMap<ByteArrayWrapper, BlockNode>();      
         H.put(new ByteArrayWrapper(genesisBlock.getHash()), genesis);      
+        levels = new TreeMap<Integer, ArrayList<BlockNode>>();
+        addToLevel(genesis);
         height = 1;      
         maxHeightBlock = genesis;      
+        snapshot = new Snapshot(genesisBlock, uPool, height);
         txPool = new TransactionPool();
+        txPool.setUTXOView(uPool);
+        orphans = new OrphanBlockPool(MAX_ORPHAN_BLOCKS, MAX_ORPHAN_AGE_MILLIS);
+        invalidBlocks = new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+                return size() > MAX_INVALID_BLOCKS;
+            }
+        };
+        this.store = store;
+        storeBlock(genesis);
+        this.txIndex = txIndex;
+        if (txIndex != null)
+            txIndex.addBlock(genesisBlock);
+    }
+
+    /* An immutable view of the chain as of one commit: the max height 
+     * block, the UTXO pool on top of it and the chain height. Pools are 
+     * never changed once their block is committed, so a snapshot stays 
+     * consistent however far the chain moves on.
+     */
+    public static final class Snapshot {
+        private final Block block;
+        private final UTXOPool uPool;
+        private final int height;
+
+        private Snapshot(Block block, UTXOPool uPool, int height) {
+            this.block = block;
+            this.uPool = uPool;
+            this.height = height;
+        }
+
+        public Block getMaxHeightBlock() {
+            return block;
+        }
+
+        // a copy of the UTXO pool for mining a new block on top of the max height block
+        public UTXOPool getMaxHeightUTXOPool() {
+            return new UTXOPool(uPool);
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    /* Get the state of the chain as of the last commit. Never blocks, and 
+     * the three values in it always belong together
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
     }
 
     /* Get the maximum height block
      */
     public Block getMaxHeightBlock() {
-        return maxHeightBlock.b;
+        return snapshot.getMaxHeightBlock();
+    }
+
+    /* Get every tip (block without children) still inside the CUT_OFF_AGE 
+     * window, in fork-choice order: the first one is the max height block
+     */
+    public synchronized ArrayList<Block> getTips() {
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        for (BlockNode tip : tipsByHeight)
+            blocks.add(tip.b);
+        return blocks;
+    }
+
+    /* Get the last block shared by the branches ending in blocks a and b, 
+     * or null if either is unknown or their common ancestor was pruned
+     */
+    public synchronized Block getForkPoint(byte[] a, byte[] b) {
+        BlockNode x = H.get(new ByteArrayWrapper(a));
+        BlockNode y = H.get(new ByteArrayWrapper(b));
+        while (x != null && y != null && x != y) {
+            if (x.height >= y.height)
+                x = x.parent;
+            else
+                y = y.parent;
+        }
+        return x == null || y == null ? null : x.b;
+    }
+
+    /* Get the height of the block with this hash, or -1 if the chain does 
+     * not hold it (it was never added, or has been pruned)
+     */
+    public synchronized int getBlockHeight(byte[] hash) {
+        BlockNode node = hash == null ? null : H.get(new ByteArrayWrapper(hash));
+        return node == null ? -1 : node.height;
+    }
+
+    /* Whether the block with this hash has already failed validation
+     */
+    public synchronized boolean isKnownInvalid(byte[] hash) {
+        return hash != null && invalidBlocks.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /* Set the assume-valid block: the signatures in it and in the ancestors 
+     * proven with addAssumedValid are not checked. Every other rule still 
+     * is, and blocks after it or on other branches are checked in full. 
+     * null turns this off.
+     */
+    public synchronized void setAssumeValid(byte[] hash) {
+        assumeValid = hash == null ? null : hash.clone();
+        assumedValid.clear();
+    }
+
+    /* Get the hash of the assume-valid block, or null if none is set
+     */
+    public synchronized byte[] getAssumeValid() {
+        return assumeValid == null ? null : assumeValid.clone();
+    }
+
+    /* Trust the signatures of a branch of bodies, lowest first, ending in the 
+     * assume-valid block. Headers alone prove nothing, since a header's hash 
+     * is only a claim, so the proof runs down from the bodies: the last must 
+     * really hash to the assume-valid hash, and each one below must really 
+     * hash to the parent hash named by the body above it. Trust stops at the 
+     * first body that fails. Returns the number of bodies trusted.
+     */
+    public synchronized int addAssumedValid(List<Block> branch) {
+        if (assumeValid == null)
+            return 0;
+        byte[] expected = assumeValid;
+        int trusted = 0;
+        for (int i = branch.size() - 1; i >= 0; i--) {
+            Block b = branch.get(i);
+            if (b == null || !Arrays.equals(b.getHash(), expected) || !b.hasValidHash())
+                break;
+            assumedValid.add(new ByteArrayWrapper(b.getHash()));
+            expected = b.getPrevBlockHash();
+            trusted++;
+        }
+        return trusted;
+    }
+
+    /* Get the block store accepted blocks are written to, or null
+     */
+    public BlockStore getBlockStore() {
+        return store;
+    }
+
+    /* Get the index of the best chain's transactions, or null if none is kept
+     */
+    public TxIndex getTxIndex() {
+        return txIndex;
     }
 
     /* Get the UTXOPool for mining a new block on top of 
      * max height block
      */
     public UTXOPool getMaxHeightUTXOPool() {
-        return maxHeightBlock.getUTXOPoolCopy();
+        return snapshot.getMaxHeightUTXOPool();
     }
 
     /* Get the transaction pool to mine a new block
@@ -80,54 +287,212 @@ public class BlockChain {
     }
     
     //valid check for block
-    /* For validity, all transactions should be valid
+    /* For validity, the block must pass the stateless checks addBlocks 
+     * runs, all transactions should be valid
      * and block should be at height > (maxHeight - CUT_OFF_AGE).
      * For example, you can try creating a new block over genesis block 
      * (block height 2) if blockChain height is <= CUT_OFF_AGE + 1. 
      * As soon as height > CUT_OFF_AGE + 1, you cannot create a new block at height 2.
      */
-    private boolean blockValid(BlockNode b){
+    private boolean blockValid(BlockNode b, ArrayList<byte[]> rejectedTxs){
     	// Check that height is valid
-    	boolean isValid = b.height > height - CUT_OFF_AGE;
-    	
-    	if (isValid) {
-		    TxHandler handler = new TxHandler(b.parent.uPool);
-		    ArrayList<Transaction> blockTxs = b.b.getTransactions(); 
-		    Transaction[] txs = handler.handleTxs(blockTxs.toArray(new Transaction[blockTxs.size()]));
-		    
-		    if (txs.length != b.b.getTransactions().size()) {
-                isValid = false;
-            }
-		    
-		    for (Transaction tx : txs) {
-                ArrayList<Transaction.Output> outputs = tx.getOutputs();
-                for (int i = 0; i < outputs.size(); i++) {
-                    UTXO utxo = new UTXO(tx.getHash(), i);
-                    b.uPool.addUTXO(utxo, outputs.get(i));
-                }
+    	return b.height > height - CUT_OFF_AGE && statelessValid(b.b, rejectedTxs) 
+    	        && transactionsValid(b, b.parent.uPool, !isAssumedValid(b.b), rejectedTxs);
+    }
+    
+    /* Check b's transactions on top of parentPool and fill in b's own pool. 
+     * Reads nothing but its arguments, so sibling blocks can be checked on 
+     * different threads. Signatures are only checked if verifySignatures is 
+     * set. Hashes of transactions that can never become valid are added to 
+     * rejectedTxs.
+     */
+    private static boolean transactionsValid(BlockNode b, UTXOPool parentPool, boolean verifySignatures, 
+            ArrayList<byte[]> rejectedTxs){
+    	boolean isValid = true;
+	    TxHandler handler = new TxHandler(parentPool);
+	    handler.setVerifySignatures(verifySignatures);
+	    ArrayList<Transaction> txs = new ArrayList<Transaction>();
+	    for (Transaction tx : b.b.getTransactions()) {
+	        ValidationResult result = handler.apply(tx);
+	        if (result != ValidationResult.VALID) {
+	            // remember transactions that can never become valid
+	            if (result.isPermanent() && tx.hasValidHash())
+	                rejectedTxs.add(tx.getHash());
+	            isValid = false;
+	            break;
+	        }
+	        txs.add(tx);
+	    }
+	    
+	    for (Transaction tx : txs) {
+            ArrayList<Transaction.Output> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                UTXO utxo = new UTXO(tx.getHash(), i);
+                b.uPool.addUTXO(utxo, outputs.get(i));
             }
-		    
-		    ArrayList<UTXO> utxos = handler.getUTXOPool().getAllUTXO();
-		    UTXOPool parentPool = b.parent.uPool;
-		    for (UTXO utxo : utxos)
-		    	if (parentPool.contains(utxo))
-		    		b.uPool.addUTXO(utxo, parentPool.getTxOutput(utxo));
-    	}
+        }
+	    
+	    ArrayList<UTXO> utxos = handler.getUTXOPool().getAllUTXO();
+	    for (UTXO utxo : utxos)
+	    	if (parentPool.contains(utxo))
+	    		b.uPool.addUTXO(utxo, parentPool.getTxOutput(utxo));
         return isValid;
     }
     
+    /* Whether b's signatures may be trusted: it is the assume-valid block or 
+     * one of its proven ancestors, and its contents really hash to that hash
+     */
+    private boolean isAssumedValid(Block b) {
+        return !assumedValid.isEmpty() && b.getHash() != null 
+                && assumedValid.contains(new ByteArrayWrapper(b.getHash())) && b.hasValidHash();
+    }
+    
+    /* Checks that need nothing but the block itself: its hash and the hashes 
+     * of its transactions match their contents, and no transaction claims an 
+     * output twice or has a negative output. Safe to run on any thread; 
+     * hashes of transactions that can never become valid go in rejectedTxs.
+     */
+    private static boolean statelessValid(Block b, ArrayList<byte[]> rejectedTxs) {
+        if (!b.hasValidHash())
+            return false;
+        for (Transaction tx : b.getTransactions()) {
+            if (!tx.hasValidHash())
+                return false;
+            if (TxHandler.checkSyntax(tx) != ValidationResult.VALID) {
+                rejectedTxs.add(tx.getHash());
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /* Add a block to block chain if it is valid.
      * Return true of block is successfully added
+     * A block whose parent is unknown is held in the orphan pool and 
+     * connected, together with any orphans waiting on it, once the parent 
+     * is added.
      */
-    public boolean addBlock(Block b) {
+    public synchronized boolean addBlock(Block b) {
         
         //get previous block hash
         byte[] prevBlockHash = b.getPrevBlockHash();
         if (prevBlockHash == null) return false;
         
+        //skip blocks already found invalid
+        if (b.getHash() == null || invalidBlocks.containsKey(new ByteArrayWrapper(b.getHash()))) return false;
+        
         //get previous block node
         BlockNode prevBlockNode = H.get(new ByteArrayWrapper(prevBlockHash));
-        if (prevBlockNode == null) return false;
+        if (prevBlockNode == null) {
+            orphans.addBlock(b);
+            return false;
+        }
+        
+        //create new BlockNode to be added; it is only linked under its 
+        //parent once it has been validated
+        BlockNode blockNode = newBlockNode(b, prevBlockNode);
+        ArrayList<byte[]> rejectedTxs = new ArrayList<byte[]>();
+        if (!commitBlock(blockNode, blockValid(blockNode, rejectedTxs), rejectedTxs)) return false;
+        connectOrphans(b);
+        return true;
+    }
+    
+    /* Add a batch of blocks, validating them concurrently on nThreads 
+     * workers. Stateless checks for every block start at once. Blocks whose 
+     * parent is already in the chain are then validated in parallel, each 
+     * against its own parent's pool, and committed one at a time in batch 
+     * order; this repeats until no more blocks connect. Blocks still missing 
+     * a parent go to the orphan pool. Returns which blocks were added.
+     */
+    public boolean[] addBlocks(List<Block> blocks, int nThreads) {
+        final int n = blocks.size();
+        boolean[] added = new boolean[n];
+        boolean[] done = new boolean[n];
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        try {
+            final ArrayList<ArrayList<byte[]>> rejectedTxs = new ArrayList<ArrayList<byte[]>>();
+            ArrayList<Future<Boolean>> stateless = new ArrayList<Future<Boolean>>();
+            for (final Block b : blocks) {
+                final ArrayList<byte[]> rejected = new ArrayList<byte[]>();
+                rejectedTxs.add(rejected);
+                stateless.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return statelessValid(b, rejected);
+                    }
+                }));
+            }
+            
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                //the next wave: blocks whose parent is now in the chain
+                ArrayList<Integer> wave = new ArrayList<Integer>();
+                ArrayList<BlockNode> nodes = new ArrayList<BlockNode>();
+                ArrayList<Future<Boolean>> checks = new ArrayList<Future<Boolean>>();
+                synchronized (this) {
+                    for (int i = 0; i < n; i++) {
+                        Block b = blocks.get(i);
+                        if (done[i] || b.getPrevBlockHash() == null || b.getHash() == null || 
+                                invalidBlocks.containsKey(new ByteArrayWrapper(b.getHash()))) {
+                            done[i] = true;
+                            continue;
+                        }
+                        BlockNode parent = H.get(new ByteArrayWrapper(b.getPrevBlockHash()));
+                        if (parent == null)
+                            continue;
+                        final BlockNode blockNode = newBlockNode(b, parent);
+                        final UTXOPool parentPool = parent.uPool;
+                        final Future<Boolean> statelessCheck = stateless.get(i);
+                        final ArrayList<byte[]> rejected = rejectedTxs.get(i);
+                        final boolean verifySignatures = !isAssumedValid(b);
+                        wave.add(i);
+                        nodes.add(blockNode);
+                        checks.add(executor.submit(new Callable<Boolean>() {
+                            public Boolean call() throws Exception {
+                                return statelessCheck.get() && transactionsValid(blockNode, parentPool, verifySignatures, rejected);
+                            }
+                        }));
+                    }
+                }
+                
+                //only the commits, and with them the tip updates, are serialized; 
+                //each check is waited for before the lock is taken
+                for (int k = 0; k < wave.size(); k++) {
+                    int i = wave.get(k);
+                    done[i] = true;
+                    progress = true;
+                    boolean isValid = checks.get(k).get();
+                    synchronized (this) {
+                        added[i] = commitBlock(nodes.get(k), isValid, rejectedTxs.get(i));
+                        if (added[i])
+                            connectOrphans(blocks.get(i));
+                    }
+                }
+            }
+            
+            for (int i = 0; i < n; i++) {
+                if (done[i])
+                    continue;
+                if (stateless.get(i).get())
+                    added[i] = addBlock(blocks.get(i));
+                else
+                    synchronized (this) {
+                        rejectBlock(blocks.get(i), rejectedTxs.get(i));
+                    }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while adding blocks", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to add blocks", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return added;
+    }
+    
+    // create the (unlinked) node for b on top of prevBlockNode, holding b's coinbase
+    private BlockNode newBlockNode(Block b, BlockNode prevBlockNode) {
         
         //construct UTXOPool
         UTXOPool uPool = new UTXOPool();
@@ -137,30 +502,180 @@ public class BlockChain {
             UTXO utxoCoinbase = new UTXO(coinbase.getHash(), i);
             uPool.addUTXO(utxoCoinbase, outputs.get(i));
         }
+        return new BlockNode(b, prevBlockNode, uPool);
+    }
+    
+    /* Add a validated node to the chain, or reject it. The height rule is 
+     * checked again here, since the chain may have grown while the node was 
+     * being validated.
+     */
+    private boolean commitBlock(BlockNode blockNode, boolean isValid, ArrayList<byte[]> rejectedTxs) {
+        if (!isValid || blockNode.height <= height - CUT_OFF_AGE) {
+            rejectBlock(blockNode.b, rejectedTxs);
+            return false;
+        }
+        blockNode.link();
         
-        //create new BlockNode to be added
-        BlockNode blockNode = new BlockNode(b, prevBlockNode, uPool);
-        if(!blockValid(blockNode)) return false;
-        
-        //add block to block chain
-        heads.add(blockNode);
-        H.put(new ByteArrayWrapper(b.getHash()), blockNode);
+        //add block to block chain; it replaces its parent as a tip
+        removeTip(blockNode.parent);
+        addTip(blockNode);
+        H.put(new ByteArrayWrapper(blockNode.b.getHash()), blockNode);
+        assumedValid.remove(new ByteArrayWrapper(blockNode.b.getHash()));
+        addToLevel(blockNode);
+        storeBlock(blockNode);
         
-        //update block chain height and max height block
-        if(blockNode.height > height){
-            height = blockNode.height;
-            maxHeightBlock = blockNode;
+        //update block chain height and max height block, then publish them
+        BlockNode oldTip = maxHeightBlock;
+        maxHeightBlock = tipsByHeight.first();
+        if (maxHeightBlock != oldTip)
+            moveTip(oldTip, maxHeightBlock);
+        else
+            txPool.removeTransactions(blockNode.b); // went onto a side branch
+        if(maxHeightBlock.height > height){
+            height = maxHeightBlock.height;
+            prune();
         }
+        if (snapshot.block != maxHeightBlock.b)
+            snapshot = new Snapshot(maxHeightBlock.b, maxHeightBlock.uPool, height);
         
-        // Remove transactions from transaction pool
-        for (Transaction t : blockNode.b.getTransactions()){
-            txPool.removeTransaction(t.getHash());
+        return true;
+    }
+    
+    /* Move the tx index and the transaction pool from the branch ending in 
+     * from to the one ending in to. The usual case, one block on top of the 
+     * old tip, touches only that block's transactions; a switch of branches 
+     * also undoes from's blocks down to the fork point. Runs before pruning, 
+     * so both branches are still linked above the fork.
+     */
+    private void moveTip(BlockNode from, BlockNode to) {
+        ArrayList<Block> disconnected = new ArrayList<Block>();
+        ArrayList<Block> connected = new ArrayList<Block>();
+        BlockNode tip = to;
+        while (from != null && to != null && from != to) {
+            if (from.height >= to.height) {
+                disconnected.add(from.b);
+                from = from.parent;
+            } else {
+                connected.add(to.b);
+                to = to.parent;
+            }
         }
+        //the fork point may have been pruned; then whatever is left of 
+        //either branch, down to its root, is not shared with the other
+        for (; from != to && from != null; from = from.parent)
+            disconnected.add(from.b);
+        for (; from != to && to != null; to = to.parent)
+            connected.add(to.b);
+        Collections.reverse(connected);
         
+        if (txIndex != null) {
+            for (Block b : disconnected)
+                txIndex.removeBlock(b);
+            for (Block b : connected)
+                txIndex.addBlock(b);
+        }
+        if (disconnected.isEmpty() && connected.size() == 1)
+            txPool.blockConnected(tip.b, tip.uPool);
+        else
+            txPool.reorganize(disconnected, connected, tip.uPool);
+    }
+    
+    /* A failed write loses the block from disk but not from the chain. So 
+     * does a hash the store cannot key on: blockValid only lets through 
+     * blocks whose hash is their SHA-256 digest, but the genesis block is 
+     * taken on trust, and by now the node is already linked.
+     */
+    private void storeBlock(BlockNode node) {
+        byte[] hash = node.b.getHash();
+        if (store == null || hash == null || hash.length != BlockStore.HASH_SIZE)
+            return;
+        try {
+            store.append(node.b, node.height);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    private void rejectBlock(Block b, ArrayList<byte[]> rejectedTxs) {
+        for (byte[] txHash : rejectedTxs)
+            txPool.markInvalid(txHash);
+        if (commitsToContents(b))
+            invalidBlocks.put(new ByteArrayWrapper(b.getHash()), Boolean.TRUE);
+    }
+    
+    /* Whether b's hash may be trusted as a cache key for b: it really is b's 
+     * hash, and the hash fields it does not cover (those of the coinbase and 
+     * the transactions) match their contents. Otherwise a copy of a valid 
+     * block with one hash field corrupted would share its hash.
+     */
+    private static boolean commitsToContents(Block b) {
+        if (!b.hasValidHash() || !b.getCoinbase().hasValidHash())
+            return false;
+        for (Transaction tx : b.getTransactions())
+            if (!tx.hasValidHash())
+                return false;
         return true;
     }
+    
+    // connect buffered descendants of b, breadth first
+    private void connectOrphans(Block b) {
+        ArrayList<Block> connected = new ArrayList<Block>();
+        connected.add(b);
+        for (int i = 0; i < connected.size(); i++) {
+            byte[] hash = connected.get(i).getHash();
+            for (Block orphan : orphans.removeChildren(hash)) {
+                BlockNode parent = H.get(new ByteArrayWrapper(hash));
+                if (parent == null)
+                    continue;
+                BlockNode blockNode = newBlockNode(orphan, parent);
+                ArrayList<byte[]> rejectedTxs = new ArrayList<byte[]>();
+                if (commitBlock(blockNode, blockValid(blockNode, rejectedTxs), rejectedTxs))
+                    connected.add(orphan);
+            }
+        }
+    }
+
+    private void addTip(BlockNode node) {
+        if (tips.add(node))
+            tipsByHeight.add(node);
+    }
+
+    private void removeTip(BlockNode node) {
+        if (tips.remove(node))
+            tipsByHeight.remove(node);
+    }
+
+    private void addToLevel(BlockNode node) {
+        ArrayList<BlockNode> level = levels.get(node.height);
+        if (level == null) {
+            level = new ArrayList<BlockNode>();
+            levels.put(node.height, level);
+        }
+        level.add(node);
+    }
+    
+    /* Drop every node below height - CUT_OFF_AGE. A block on top of one of 
+     * them could never be valid again, so nothing needs their pools, their 
+     * hash entries or the links that keep them reachable. The oldest 
+     * surviving level becomes the root of what is left.
+     */
+    private void prune() {
+        int cutoff = height - CUT_OFF_AGE;
+        while (!levels.isEmpty() && levels.firstKey() < cutoff) {
+            for (BlockNode node : levels.pollFirstEntry().getValue()) {
+                H.remove(new ByteArrayWrapper(node.b.getHash()));
+                removeTip(node);
+                for (BlockNode child : node.children)
+                    child.parent = null;
+                node.children.clear();
+                node.parent = null;
+                node.uPool = null;
+            }
+        }
+    }
 
-    //Add a transaction in transaction pool
+    //Add a transaction in transaction pool; the pool does its own locking, 
+    //so transactions arriving on many threads are preverified in parallel
     public void addTransaction(Transaction tx) {
         txPool.addTransaction(tx);
         return;
@@ -0,0 +1,178 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+/* Binary encoding of blocks and transactions, for storing them on disk and 
+ * sending them to peers. Byte arrays are written as a length (-1 for null) 
+ * followed by the bytes; a block is its previous block hash, its hash, the 
+ * address its coinbase pays, and then its transactions.
+ *
+ * Data comes from peers, so no length or count read from it is trusted: 
+ * one that the bytes left could not hold is refused with an IOException 
+ * before anything is allocated for it.
+ */
+public class BlockCodec {
+   // the fewest bytes a transaction, an input and an output can take
+   private static final int MIN_TX_BYTES = 12;
+   private static final int MIN_INPUT_BYTES = 12;
+   private static final int MIN_OUTPUT_BYTES = 18;
+
+   public static byte[] encode(Block b) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+         writeBytes(out, b.getPrevBlockHash());
+         writeBytes(out, b.getHash());
+         writeAddress(out, b.getCoinbase().getOutput(0).address);
+         ArrayList<Transaction> txs = b.getTransactions();
+         out.writeInt(txs.size());
+         for (Transaction tx : txs)
+            writeTransaction(out, tx);
+      } catch (IOException x) {
+         // writing to memory cannot fail
+         throw new IllegalStateException(x);
+      }
+      return bytes.toByteArray();
+   }
+
+   public static Block decode(byte[] data) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      byte[] prevHash = readBytes(in);
+      byte[] hash = readBytes(in);
+      Block b = new Block(prevHash, readAddress(in));
+      int nTxs = readCount(in, MIN_TX_BYTES);
+      for (int i = 0; i < nTxs; i++)
+         b.addTransaction(readTransaction(in));
+      b.setHash(hash);
+      return b;
+   }
+
+   /* A compact block is its header, its coinbase, the salt and the short 
+    * ids, each in CompactBlock.SHORT_ID_BYTES bytes
+    */
+   public static byte[] encode(CompactBlock cb) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+         writeBytes(out, cb.getHeader().getPrevBlockHash());
+         writeBytes(out, cb.getHeader().getHash());
+         writeTransaction(out, cb.getCoinbase());
+         out.writeLong(cb.getSalt());
+         long[] ids = cb.getShortIds();
+         out.writeInt(ids.length);
+         for (long id : ids)
+            for (int i = CompactBlock.SHORT_ID_BYTES - 1; i >= 0; i--)
+               out.writeByte((int) (id >>> (8 * i)));
+      } catch (IOException x) {
+         throw new IllegalStateException(x);
+      }
+      return bytes.toByteArray();
+   }
+
+   public static CompactBlock decodeCompactBlock(byte[] data) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      byte[] prevHash = readBytes(in);
+      byte[] hash = readBytes(in);
+      Transaction coinbase = readTransaction(in);
+      long salt = in.readLong();
+      long[] ids = new long[readCount(in, CompactBlock.SHORT_ID_BYTES)];
+      for (int k = 0; k < ids.length; k++)
+         for (int i = 0; i < CompactBlock.SHORT_ID_BYTES; i++)
+            ids[k] = (ids[k] << 8) | in.readUnsignedByte();
+      return new CompactBlock(new BlockHeader(hash, prevHash), coinbase, salt, ids);
+   }
+
+   public static byte[] encode(Transaction tx) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try {
+         writeTransaction(new DataOutputStream(bytes), tx);
+      } catch (IOException x) {
+         throw new IllegalStateException(x);
+      }
+      return bytes.toByteArray();
+   }
+
+   public static Transaction decodeTransaction(byte[] data) throws IOException {
+      return readTransaction(new DataInputStream(new ByteArrayInputStream(data)));
+   }
+
+   private static void writeTransaction(DataOutputStream out, Transaction tx) throws IOException {
+      writeBytes(out, tx.getHash());
+      out.writeInt(tx.numInputs());
+      for (Transaction.Input input : tx.getInputs()) {
+         writeBytes(out, input.prevTxHash);
+         out.writeInt(input.outputIndex);
+         writeBytes(out, input.signature);
+      }
+      out.writeInt(tx.numOutputs());
+      for (Transaction.Output output : tx.getOutputs()) {
+         out.writeDouble(output.value);
+         writeAddress(out, output.address);
+      }
+   }
+
+   private static Transaction readTransaction(DataInputStream in) throws IOException {
+      Transaction tx = new Transaction();
+      byte[] hash = readBytes(in);
+      int nInputs = readCount(in, MIN_INPUT_BYTES);
+      for (int i = 0; i < nInputs; i++) {
+         tx.addInput(readBytes(in), in.readInt());
+         tx.addSignature(readBytes(in), i);
+      }
+      int nOutputs = readCount(in, MIN_OUTPUT_BYTES);
+      for (int i = 0; i < nOutputs; i++) {
+         double value = in.readDouble();
+         tx.addOutput(value, readAddress(in));
+      }
+      tx.setHash(hash);
+      return tx;
+   }
+
+   private static void writeAddress(DataOutputStream out, RSAKey address) throws IOException {
+      writeBytes(out, address.getExponent().toByteArray());
+      writeBytes(out, address.getModulus().toByteArray());
+   }
+
+   private static RSAKey readAddress(DataInputStream in) throws IOException {
+      byte[] exponent = readBytes(in);
+      byte[] modulus = readBytes(in);
+      // BigInteger.toByteArray always writes at least one byte
+      if (exponent == null || exponent.length == 0 || modulus == null || modulus.length == 0)
+         throw new IOException("malformed address");
+      return new RSAKey(new BigInteger(exponent), new BigInteger(modulus));
+   }
+
+   private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+      if (b == null) {
+         out.writeInt(-1);
+         return;
+      }
+      out.writeInt(b.length);
+      out.write(b);
+   }
+
+   private static byte[] readBytes(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length == -1)
+         return null;
+      byte[] b = new byte[readCount(length, in, 1)];
+      in.readFully(b);
+      return b;
+   }
+
+   // read a count of items taking at least minBytes each
+   private static int readCount(DataInputStream in, int minBytes) throws IOException {
+      return readCount(in.readInt(), in, minBytes);
+   }
+
+   // every stream decoded here reads from an array, so available is exact
+   private static int readCount(int count, DataInputStream in, int minBytes) throws IOException {
+      if (count < 0 || count > in.available() / minBytes)
+         throw new IOException("count " + count + " does not fit the " + in.available() + " bytes left");
+      return count;
+   }
+}
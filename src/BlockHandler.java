@@ -1,4 +1,11 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
 public class BlockHandler {
+   // encoded bytes of pool transactions put in a block we create
+   public static final long MAX_BLOCK_BYTES = 1000000;
+
    private BlockChain blockChain;
 
    // assume blockChain has the genesis block
@@ -14,18 +21,53 @@ public class BlockHandler {
       return blockChain.addBlock(block);
    }
 
-   // create a new block over the max height block
+   // add a batch of blocks, validating independent ones in parallel, and
+   // return which of them were added
+   public boolean[] processBlocks(List<Block> blocks) {
+      return blockChain.addBlocks(blocks, Runtime.getRuntime().availableProcessors());
+   }
+
+   // add a block relayed in compact form by peer, filling it from the
+   // transaction pool and asking peer only for what the pool lacks; the
+   // full block is fetched if reconstruction fails
+   public boolean processCompactBlock(CompactBlock compact, HeadersFirstSync.Peer peer) throws IOException {
+      if (compact == null)
+         return false;
+      byte[] hash = compact.getHeader().getHash();
+      CompactBlock.Reconstruction partial = compact.reconstruct(blockChain.getTransactionPool());
+      if (!partial.isComplete())
+         partial.fill(peer.getBlockTransactions(hash, partial.getMissing()));
+      Block block = partial.getBlock();
+      if (block == null)
+         block = peer.getBlock(hash);
+      return processBlock(block);
+   }
+
+   // catch up with peer, headers first, and return the number of blocks added
+   public int syncFrom(HeadersFirstSync.Peer peer) throws IOException {
+      return new HeadersFirstSync(blockChain, Runtime.getRuntime().availableProcessors()).sync(peer);
+   }
+
+   // create a new block over the max height block; a small pool is filled
+   // with the mutually valid set that pays the most fees, a larger one by
+   // ancestor package fee rate up to MAX_BLOCK_BYTES
    public Block createBlock(RSAKey myAddress) {
-      Block parent = blockChain.getMaxHeightBlock();
+      BlockChain.Snapshot tip = blockChain.getSnapshot();
+      Block parent = tip.getMaxHeightBlock();
       byte[] parentHash = parent.getHash();
       Block current = new Block(parentHash, myAddress);
-      UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+      UTXOPool uPool = tip.getMaxHeightUTXOPool();
       TransactionPool txPool = blockChain.getTransactionPool();
-      TxHandler handler = new TxHandler(uPool);
-      Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-      Transaction[] rTxs = handler.handleTxs(txs);
-      for (int i = 0; i < rTxs.length; i++)
-         current.addTransaction(rTxs[i]);
+      List<Transaction> rTxs;
+      if (txPool.size() <= MaxFeeTxHandler.EXACT_LIMIT) {
+         MaxFeeTxHandler handler = new MaxFeeTxHandler(uPool);
+         Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
+         rTxs = Arrays.asList(handler.handleTxs(txs));
+      } else {
+         rTxs = txPool.selectTransactions(uPool, MAX_BLOCK_BYTES);
+      }
+      for (Transaction tx : rTxs)
+         current.addTransaction(tx);
 
       current.finalize();
       if (blockChain.addBlock(current))
@@ -0,0 +1,32 @@
+import java.util.Arrays;
+
+/* The part of a block needed to place it in the chain: its hash and the hash 
+ * of the block before it, without the transactions. A block's hash covers 
+ * its whole body, so a header can be checked for where it links, but only 
+ * the body it names can prove the hash.
+ */
+public class BlockHeader {
+
+   private final byte[] hash;
+   private final byte[] prevBlockHash;
+
+   public BlockHeader(byte[] hash, byte[] prevHash) {
+      this.hash = hash;
+      prevBlockHash = prevHash;
+   }
+
+   public byte[] getHash() {
+      return hash;
+   }
+
+   public byte[] getPrevBlockHash() {
+      return prevBlockHash;
+   }
+
+   // whether b is the block this header names: same hash, same parent, and 
+   // a hash that really is the hash of b's contents
+   public boolean matches(Block b) {
+      return b != null && Arrays.equals(hash, b.getHash()) 
+            && Arrays.equals(prevBlockHash, b.getPrevBlockHash()) && b.hasValidHash();
+   }
+}
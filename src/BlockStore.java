@@ -0,0 +1,336 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/* Append-only on-disk store of every block the chain accepts, so blocks 
+ * pruned from memory can still be served to peers.
+ *
+ * Blocks are appended, in BlockCodec's encoding and prefixed with their 
+ * length, to segment files blk00000.dat, blk00001.dat, ... of at most 
+ * segmentSize bytes each. A memory-mapped hash table in index.dat maps each 
+ * block hash to the segment, offset and length of its record together with 
+ * its height and previous block hash, so lookups and walks down a branch 
+ * never read a segment. Reads are copied straight from the segment file to 
+ * the caller's channel with FileChannel.transferTo.
+ */
+public class BlockStore {
+   public static final int HASH_SIZE = 32;
+   public static final long DEFAULT_SEGMENT_SIZE = 128L * 1024 * 1024;
+   private static final int INITIAL_CAPACITY = 1024;
+
+   // index layout: capacity and count, then capacity slots of
+   // used flag, hash, previous hash, segment, offset, length, height
+   private static final int HEADER_SIZE = 8;
+   private static final int USED = 0;
+   private static final int HASH = 4;
+   private static final int PREV_HASH = HASH + HASH_SIZE;
+   private static final int SEGMENT = PREV_HASH + HASH_SIZE;
+   private static final int OFFSET = SEGMENT + 4;
+   private static final int LENGTH = OFFSET + 8;
+   private static final int HEIGHT = LENGTH + 4;
+   private static final int SLOT_SIZE = HEIGHT + 4;
+
+   private final File dir;
+   private final long segmentSize;
+   private final ArrayList<FileChannel> segments;
+   private RandomAccessFile indexFile;
+   private MappedByteBuffer index;
+   private int capacity;
+   private int count;
+
+   public BlockStore(File dir) throws IOException {
+      this(dir, DEFAULT_SEGMENT_SIZE);
+   }
+
+   public BlockStore(File dir, long segmentSize) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create block store directory " + dir);
+      this.dir = dir;
+      this.segmentSize = segmentSize;
+      segments = new ArrayList<FileChannel>();
+      for (int i = 0; segmentFile(i).exists(); i++)
+         segments.add(openSegment(i));
+
+      File file = new File(dir, "index.dat");
+      boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+      indexFile = new RandomAccessFile(file, "rw");
+      if (exists) {
+         capacity = indexFile.readInt();
+         count = indexFile.readInt();
+         index = map(indexFile, capacity);
+      } else {
+         capacity = INITIAL_CAPACITY;
+         count = 0;
+         index = map(indexFile, capacity);
+         writeHeader();
+      }
+   }
+
+   /* Append b at the given height, unless it is already stored. The record 
+    * is written before its index entry, so a crash in between leaves at most 
+    * an unreachable record behind.
+    */
+   public synchronized void append(Block b, int height) throws IOException {
+      byte[] hash = checkHash(b.getHash());
+      if (find(hash) >= 0)
+         return;
+      byte[] data = BlockCodec.encode(b);
+      int length = 4 + data.length;
+
+      if (segments.isEmpty() || (segments.get(segments.size() - 1).size() + length > segmentSize 
+            && segments.get(segments.size() - 1).size() > 0))
+         segments.add(openSegment(segments.size()));
+      int segment = segments.size() - 1;
+      FileChannel channel = segments.get(segment);
+      long offset = channel.size();
+      ByteBuffer record = ByteBuffer.allocate(length);
+      record.putInt(data.length).put(data).flip();
+      while (record.hasRemaining())
+         channel.write(record, offset + record.position());
+
+      if ((count + 1) * 4L > capacity * 3L)
+         grow();
+      int slot = -find(hash) - 1;
+      putSlot(index, slot, hash, b.getPrevBlockHash(), segment, offset + 4, data.length, height);
+      count++;
+      writeHeader();
+   }
+
+   public synchronized boolean contains(byte[] hash) {
+      return hash != null && hash.length == HASH_SIZE && find(hash) >= 0;
+   }
+
+   /* Get the stored block with this hash, or null if there is none
+    */
+   public synchronized Block getBlock(byte[] hash) throws IOException {
+      int slot = hash == null || hash.length != HASH_SIZE ? -1 : find(hash);
+      if (slot < 0)
+         return null;
+      ByteBuffer data = ByteBuffer.allocate(index.getInt(base(slot) + LENGTH));
+      FileChannel channel = segments.get(index.getInt(base(slot) + SEGMENT));
+      long offset = index.getLong(base(slot) + OFFSET);
+      while (data.hasRemaining())
+         if (channel.read(data, offset + data.position()) < 0)
+            throw new IOException("truncated block record");
+      return BlockCodec.decode(data.array());
+   }
+
+   /* Get the header of the block with this hash from the index alone, or 
+    * null if it is not stored
+    */
+   public synchronized BlockHeader getHeader(byte[] hash) {
+      int slot = hash == null || hash.length != HASH_SIZE ? -1 : find(hash);
+      return slot < 0 ? null : headerAt(slot);
+   }
+
+   /* Get up to max headers of the branch ending in hash, from hash down
+    */
+   public synchronized ArrayList<BlockHeader> getHeaders(byte[] hash, int max) {
+      ArrayList<BlockHeader> headers = new ArrayList<BlockHeader>();
+      while (headers.size() < max && hash != null && hash.length == HASH_SIZE) {
+         int slot = find(hash);
+         if (slot < 0)
+            break;
+         BlockHeader header = headerAt(slot);
+         headers.add(header);
+         hash = header.getPrevBlockHash();
+      }
+      return headers;
+   }
+
+   /* Get the height a block was stored at, or -1 if it is not stored
+    */
+   public synchronized int getHeight(byte[] hash) {
+      int slot = hash == null || hash.length != HASH_SIZE ? -1 : find(hash);
+      return slot < 0 ? -1 : index.getInt(base(slot) + HEIGHT);
+   }
+
+   /* Copy the encoding of the block with this hash to target without 
+    * passing it through the heap. Returns the number of bytes written, or -1 
+    * if the block is not stored.
+    */
+   public synchronized long transferBlock(byte[] hash, WritableByteChannel target) throws IOException {
+      int slot = hash == null || hash.length != HASH_SIZE ? -1 : find(hash);
+      if (slot < 0)
+         return -1;
+      return transfer(slot, 0, target);
+   }
+
+   /* Copy the blocks at heights fromHeight to toHeight on the branch ending 
+    * in tipHash to target, lowest first, each as its length followed by its 
+    * encoding. Returns the number of blocks written; it is short if the 
+    * branch is not stored down to fromHeight.
+    */
+   public synchronized int transferRange(byte[] tipHash, int fromHeight, int toHeight, 
+         WritableByteChannel target) throws IOException {
+      ArrayList<Integer> slots = new ArrayList<Integer>();
+      for (int slot : branch(tipHash, fromHeight))
+         if (index.getInt(base(slot) + HEIGHT) <= toHeight)
+            slots.add(slot);
+      for (int slot : slots)
+         transfer(slot, 4, target);
+      return slots.size();
+   }
+
+   /* Get the blocks at heights fromHeight to toHeight on the branch ending 
+    * in tipHash, lowest first
+    */
+   public synchronized ArrayList<Block> getBlocks(byte[] tipHash, int fromHeight, int toHeight) throws IOException {
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      for (int slot : branch(tipHash, fromHeight))
+         if (index.getInt(base(slot) + HEIGHT) <= toHeight)
+            blocks.add(getBlock(hashAt(slot)));
+      return blocks;
+   }
+
+   public synchronized int size() {
+      return count;
+   }
+
+   public synchronized void close() throws IOException {
+      index.force();
+      indexFile.close();
+      for (FileChannel channel : segments)
+         channel.close();
+   }
+
+   // slots of the branch ending in tipHash down to fromHeight, lowest first
+   private ArrayList<Integer> branch(byte[] tipHash, int fromHeight) {
+      ArrayList<Integer> slots = new ArrayList<Integer>();
+      byte[] hash = tipHash;
+      while (hash != null && hash.length == HASH_SIZE) {
+         int slot = find(hash);
+         if (slot < 0 || index.getInt(base(slot) + HEIGHT) < fromHeight)
+            break;
+         slots.add(slot);
+         hash = prevHashAt(slot);
+      }
+      ArrayList<Integer> ordered = new ArrayList<Integer>();
+      for (int i = slots.size() - 1; i >= 0; i--)
+         ordered.add(slots.get(i));
+      return ordered;
+   }
+
+   // transfer a slot's record, starting prefix bytes into its length prefix
+   private long transfer(int slot, int prefix, WritableByteChannel target) throws IOException {
+      FileChannel channel = segments.get(index.getInt(base(slot) + SEGMENT));
+      long position = index.getLong(base(slot) + OFFSET) - prefix;
+      long length = index.getInt(base(slot) + LENGTH) + prefix;
+      long written = 0;
+      while (written < length)
+         written += channel.transferTo(position + written, length - written, target);
+      return written;
+   }
+
+   /* Find the slot holding hash, or -(slot + 1) for the empty slot where it 
+    * would go. Block hashes are SHA-256 digests, so their first bytes are 
+    * already uniformly distributed.
+    */
+   private int find(byte[] hash) {
+      int slot = (ByteBuffer.wrap(hash).getInt() & 0x7fffffff) % capacity;
+      while (index.getInt(base(slot) + USED) != 0) {
+         if (Arrays.equals(hash, hashAt(slot)))
+            return slot;
+         slot = (slot + 1) % capacity;
+      }
+      return -(slot + 1);
+   }
+
+   // double the table, rehashing every entry into a freshly mapped file
+   private void grow() throws IOException {
+      File file = new File(dir, "index.dat");
+      File tmp = new File(dir, "index.dat.tmp");
+      int newCapacity = capacity * 2;
+      RandomAccessFile newFile = new RandomAccessFile(tmp, "rw");
+      newFile.setLength(0);
+      MappedByteBuffer newIndex = map(newFile, newCapacity);
+      for (int slot = 0; slot < capacity; slot++) {
+         if (index.getInt(base(slot) + USED) == 0)
+            continue;
+         byte[] hash = hashAt(slot);
+         int target = (ByteBuffer.wrap(hash).getInt() & 0x7fffffff) % newCapacity;
+         while (newIndex.getInt(base(target) + USED) != 0)
+            target = (target + 1) % newCapacity;
+         putSlot(newIndex, target, hash, prevHashAt(slot), index.getInt(base(slot) + SEGMENT), 
+               index.getLong(base(slot) + OFFSET), index.getInt(base(slot) + LENGTH), 
+               index.getInt(base(slot) + HEIGHT));
+      }
+      newIndex.putInt(0, newCapacity);
+      newIndex.putInt(4, count);
+      newIndex.force();
+      indexFile.close();
+      if (!tmp.renameTo(file))
+         throw new IOException("cannot replace block store index " + file);
+      indexFile = newFile;
+      index = newIndex;
+      capacity = newCapacity;
+   }
+
+   private static void putSlot(MappedByteBuffer buffer, int slot, byte[] hash, byte[] prevHash, 
+         int segment, long offset, int length, int height) {
+      int base = base(slot);
+      for (int i = 0; i < HASH_SIZE; i++) {
+         buffer.put(base + HASH + i, hash[i]);
+         // the genesis block has no previous hash; zeros never match a block
+         buffer.put(base + PREV_HASH + i, prevHash == null || prevHash.length != HASH_SIZE ? 0 : prevHash[i]);
+      }
+      buffer.putInt(base + SEGMENT, segment);
+      buffer.putLong(base + OFFSET, offset);
+      buffer.putInt(base + LENGTH, length);
+      buffer.putInt(base + HEIGHT, height);
+      buffer.putInt(base + USED, 1);
+   }
+
+   private byte[] hashAt(int slot) {
+      byte[] hash = new byte[HASH_SIZE];
+      for (int i = 0; i < HASH_SIZE; i++)
+         hash[i] = index.get(base(slot) + HASH + i);
+      return hash;
+   }
+
+   private BlockHeader headerAt(int slot) {
+      byte[] prevHash = prevHashAt(slot);
+      return new BlockHeader(hashAt(slot), Arrays.equals(prevHash, new byte[HASH_SIZE]) ? null : prevHash);
+   }
+
+   private byte[] prevHashAt(int slot) {
+      byte[] hash = new byte[HASH_SIZE];
+      for (int i = 0; i < HASH_SIZE; i++)
+         hash[i] = index.get(base(slot) + PREV_HASH + i);
+      return hash;
+   }
+
+   private void writeHeader() {
+      index.putInt(0, capacity);
+      index.putInt(4, count);
+   }
+
+   private static int base(int slot) {
+      return HEADER_SIZE + slot * SLOT_SIZE;
+   }
+
+   private static MappedByteBuffer map(RandomAccessFile file, int capacity) throws IOException {
+      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, base(capacity));
+   }
+
+   private static byte[] checkHash(byte[] hash) {
+      if (hash == null || hash.length != HASH_SIZE)
+         throw new IllegalArgumentException("block hash must be " + HASH_SIZE + " bytes");
+      return hash;
+   }
+
+   private File segmentFile(int i) {
+      return new File(dir, String.format(Locale.ROOT, "blk%05d.dat", i));
+   }
+
+   private FileChannel openSegment(int i) throws IOException {
+      return new RandomAccessFile(segmentFile(i), "rw").getChannel();
+   }
+}
@@ -0,0 +1,173 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/* A block as relayed to a peer that probably holds most of its transactions 
+ * already: the header, the coinbase, and for every other transaction a 
+ * SHORT_ID_BYTES-byte id taken from the SHA-256 of a per-block salt and the 
+ * transaction hash. The salt keeps anyone from crafting transactions whose 
+ * ids collide in every relayed block. It is taken from the block hash, 
+ * which nobody knows before the block is found, so every relay of a block 
+ * shares it and the receiver's pool hashes its transactions once per block.
+ *
+ * The receiver matches the ids against its TransactionPool, asks the sender 
+ * for just the transactions it could not match, and then checks the result 
+ * against the header hash, falling back to the full block if a collision 
+ * picked the wrong transaction.
+ */
+public class CompactBlock {
+   public static final int SHORT_ID_BYTES = 6;
+
+   private final BlockHeader header;
+   private final Transaction coinbase;
+   private final long salt;
+   private final long[] shortIds;
+
+   public CompactBlock(Block b) {
+      this(b, salt(b.getHash()));
+   }
+
+   public CompactBlock(Block b, long salt) {
+      header = b.getHeader();
+      coinbase = b.getCoinbase();
+      this.salt = salt;
+      ArrayList<Transaction> txs = b.getTransactions();
+      shortIds = new long[txs.size()];
+      for (int i = 0; i < shortIds.length; i++)
+         shortIds[i] = shortId(salt, txs.get(i).getHash());
+   }
+
+   public CompactBlock(BlockHeader header, Transaction coinbase, long salt, long[] shortIds) {
+      this.header = header;
+      this.coinbase = coinbase;
+      this.salt = salt;
+      this.shortIds = shortIds;
+   }
+
+   public BlockHeader getHeader() {
+      return header;
+   }
+
+   public Transaction getCoinbase() {
+      return coinbase;
+   }
+
+   public long getSalt() {
+      return salt;
+   }
+
+   public long[] getShortIds() {
+      return shortIds;
+   }
+
+   /* Fill in as many transactions as possible from pool. Pool transactions 
+    * whose ids collide with each other are left out, so their slots are 
+    * fetched instead of guessed.
+    */
+   public Reconstruction reconstruct(TransactionPool pool) {
+      HashMap<Long, Transaction> byId = pool.getByShortId(salt);
+      Transaction[] txs = new Transaction[shortIds.length];
+      for (int i = 0; i < txs.length; i++)
+         txs[i] = byId.get(shortIds[i]);
+      return new Reconstruction(txs);
+   }
+
+   /* The transactions of b at the given positions, for answering a 
+    * receiver's follow-up request
+    */
+   public static ArrayList<Transaction> getTransactions(Block b, int[] indexes) {
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int i : indexes) {
+         if (i < 0 || i >= b.getTransactions().size())
+            return null;
+         txs.add(b.getTransaction(i));
+      }
+      return txs;
+   }
+
+   // the salt for the block with this hash: its first 8 bytes
+   public static long salt(byte[] blockHash) {
+      long salt = 0;
+      for (int i = 0; blockHash != null && i < Math.min(8, blockHash.length); i++)
+         salt = (salt << 8) | (blockHash[i] & 0xff);
+      return salt;
+   }
+
+   // the first SHORT_ID_BYTES bytes of SHA-256(salt || txHash)
+   public static long shortId(long salt, byte[] txHash) {
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+         md.update(ByteBuffer.allocate(8).putLong(salt).array());
+         md.update(txHash);
+         byte[] digest = md.digest();
+         long id = 0;
+         for (int i = 0; i < SHORT_ID_BYTES; i++)
+            id = (id << 8) | (digest[i] & 0xff);
+         return id;
+      } catch (NoSuchAlgorithmException x) {
+         throw new IllegalStateException(x);
+      }
+   }
+
+   /* A compact block being filled in. Once every slot holds a transaction, 
+    * getBlock rebuilds the block and checks it hashes to the header.
+    */
+   public class Reconstruction {
+      private final Transaction[] txs;
+
+      private Reconstruction(Transaction[] txs) {
+         this.txs = txs;
+      }
+
+      // positions still to be requested from the sender
+      public int[] getMissing() {
+         int[] missing = new int[txs.length];
+         int n = 0;
+         for (int i = 0; i < txs.length; i++)
+            if (txs[i] == null)
+               missing[n++] = i;
+         return Arrays.copyOf(missing, n);
+      }
+
+      public boolean isComplete() {
+         return getMissing().length == 0;
+      }
+
+      /* Fill the slots listed by getMissing with the sender's answer, in the 
+       * same order. Returns false, leaving the slots empty, if the answer 
+       * does not fit them.
+       */
+      public boolean fill(List<Transaction> missingTxs) {
+         int[] missing = getMissing();
+         if (missingTxs == null || missingTxs.size() != missing.length)
+            return false;
+         for (int k = 0; k < missing.length; k++) {
+            Transaction tx = missingTxs.get(k);
+            if (!tx.hasValidHash() || shortId(salt, tx.getHash()) != shortIds[missing[k]])
+               return false;
+         }
+         for (int k = 0; k < missing.length; k++)
+            txs[missing[k]] = missingTxs.get(k);
+         return true;
+      }
+
+      /* Get the rebuilt block, or null if a slot is still empty or the 
+       * transactions do not hash to the header
+       */
+      public Block getBlock() {
+         if (!isComplete())
+            return null;
+         Block b = new Block(header.getPrevBlockHash(), coinbase.getOutput(0).address);
+         if (!Arrays.equals(b.getCoinbase().getHash(), coinbase.getHash()))
+            return null;
+         for (Transaction tx : txs)
+            b.addTransaction(tx);
+         b.setHash(header.getHash());
+         return b.hasValidHash() ? b : null;
+      }
+   }
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Brings a block chain up to a peer's tip in two passes. First the peer's 
+ * headers are walked down from its tip to a block the chain already holds 
+ * and checked to form one linked branch the chain could still accept; this 
+ * moves no transactions. Then the bodies are downloaded in parallel, a 
+ * bounded window ahead of the block being connected, each checked against 
+ * its header and connected in height order as soon as it arrives. Connecting 
+ * is serial, since each block spends its parent's outputs, but it overlaps 
+ * with the downloads, so a long sync is bound by fetching rather than by one 
+ * round trip per block.
+ */
+public class HeadersFirstSync {
+   // headers asked for per request
+   public static final int HEADER_BATCH = 2000;
+   // headers taken from one peer before its branch is given up on
+   public static final int MAX_HEADERS = 50 * HEADER_BATCH;
+   // bodies requested ahead of the one being connected, per download thread
+   public static final int BODIES_PER_THREAD = 4;
+
+   /* Where headers and blocks come from
+    */
+   public interface Peer {
+      // the header of the peer's best block
+      BlockHeader getTip() throws IOException;
+
+      // up to max headers of the branch ending in hash, from hash down
+      List<BlockHeader> getHeaders(byte[] hash, int max) throws IOException;
+
+      // the full block with this hash, or null if the peer does not have it
+      Block getBlock(byte[] hash) throws IOException;
+
+      // the transactions at the given positions in the block with this 
+      // hash, for completing a compact block, or null if it does not have it
+      List<Transaction> getBlockTransactions(byte[] hash, int[] indexes) throws IOException;
+   }
+
+   private final BlockChain blockChain;
+   private final int nThreads;
+
+   public HeadersFirstSync(BlockChain blockChain, int nThreads) {
+      this.blockChain = blockChain;
+      this.nThreads = Math.max(1, nThreads);
+   }
+
+   /* Sync from peer and return the number of blocks connected. If the 
+    * headers reach the chain's assume-valid block, the bodies up to it are 
+    * all fetched before any is connected, so the chain can prove them its 
+    * ancestors from the top down and skip their signatures.
+    */
+   public int sync(Peer peer) throws IOException {
+      List<BlockHeader> headers = getHeaders(peer);
+      int trusted = assumeValidIndex(headers) + 1;
+      if (trusted == 0)
+         return connectBodies(peer, headers);
+
+      List<Block> branch = fetchBodies(peer, headers.subList(0, trusted));
+      blockChain.addAssumedValid(branch);
+      for (int i = 0; i < trusted; i++) {
+         if (!headers.get(i).matches(branch.get(i)) || !blockChain.addBlock(branch.get(i)))
+            return i;
+      }
+      return trusted + connectBodies(peer, headers.subList(trusted, headers.size()));
+   }
+
+   // position of the chain's assume-valid block in headers, or -1
+   private int assumeValidIndex(List<BlockHeader> headers) {
+      byte[] assumeValid = blockChain.getAssumeValid();
+      if (assumeValid == null)
+         return -1;
+      for (int i = 0; i < headers.size(); i++)
+         if (Arrays.equals(headers.get(i).getHash(), assumeValid))
+            return i;
+      return -1;
+   }
+
+   /* Get the headers on the peer's best branch above the last block the 
+    * chain holds, lowest first. The list is cut at the first header that 
+    * names a block already found invalid, and is empty if the branch never 
+    * reaches a block the chain holds or joins it too deep to be accepted. 
+    * The peer is not trusted to end the walk: it is also empty if a batch 
+    * is larger than asked for or does not carry on from the header below 
+    * the last one, if a hash comes round again, or if the branch runs past 
+    * MAX_HEADERS.
+    */
+   public List<BlockHeader> getHeaders(Peer peer) throws IOException {
+      ArrayList<BlockHeader> headers = new ArrayList<BlockHeader>();
+      HashSet<ByteArrayWrapper> seen = new HashSet<ByteArrayWrapper>();
+      BlockHeader tip = peer.getTip();
+      if (tip == null)
+         return headers;
+      byte[] next = tip.getHash();
+      int forkHeight = -1;
+      while (forkHeight < 0 && next != null) {
+         List<BlockHeader> batch = peer.getHeaders(next, HEADER_BATCH);
+         if (batch == null || batch.isEmpty() || batch.size() > HEADER_BATCH)
+            return new ArrayList<BlockHeader>();
+         for (BlockHeader header : batch) {
+            // each header must be the parent the one above it names
+            if (next == null || !Arrays.equals(header.getHash(), next))
+               return new ArrayList<BlockHeader>();
+            forkHeight = blockChain.getBlockHeight(header.getHash());
+            if (forkHeight >= 0)
+               break;
+            if (!seen.add(new ByteArrayWrapper(header.getHash())) || headers.size() == MAX_HEADERS)
+               return new ArrayList<BlockHeader>();
+            headers.add(header);
+            next = header.getPrevBlockHash();
+         }
+      }
+      if (forkHeight < 0)
+         return new ArrayList<BlockHeader>();
+      Collections.reverse(headers);
+
+      // a branch joining at or below the cut off can never be connected
+      if (forkHeight + 1 <= blockChain.getSnapshot().getHeight() - BlockChain.CUT_OFF_AGE)
+         return new ArrayList<BlockHeader>();
+      for (int i = 0; i < headers.size(); i++) {
+         if (blockChain.isKnownInvalid(headers.get(i).getHash()))
+            return new ArrayList<BlockHeader>(headers.subList(0, i));
+      }
+      return headers;
+   }
+
+   /* Download the bodies for headers in parallel, all at once, with null 
+    * for those the peer does not have
+    */
+   public List<Block> fetchBodies(final Peer peer, List<BlockHeader> headers) throws IOException {
+      ArrayList<Future<Block>> bodies = new ArrayList<Future<Block>>();
+      ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+      try {
+         for (BlockHeader header : headers) {
+            final byte[] hash = header.getHash();
+            bodies.add(executor.submit(new Callable<Block>() {
+               public Block call() throws IOException {
+                  return peer.getBlock(hash);
+               }
+            }));
+         }
+         ArrayList<Block> blocks = new ArrayList<Block>();
+         for (Future<Block> body : bodies)
+            blocks.add(body.get());
+         return blocks;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("interrupted while fetching blocks", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         throw new IllegalStateException("failed to fetch blocks", e.getCause());
+      } finally {
+         for (Future<Block> body : bodies)
+            body.cancel(false);
+         executor.shutdown();
+      }
+   }
+
+   /* Download the bodies for headers in parallel and connect them in order, 
+    * stopping at the first body that is missing, does not match its header 
+    * or is rejected by the chain. Returns the number connected.
+    */
+   public int connectBodies(final Peer peer, List<BlockHeader> headers) throws IOException {
+      int window = nThreads * BODIES_PER_THREAD;
+      ArrayList<Future<Block>> bodies = new ArrayList<Future<Block>>();
+      ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+      try {
+         int connected = 0;
+         for (int i = 0; i < headers.size(); i++) {
+            while (bodies.size() < headers.size() && bodies.size() < i + window) {
+               final byte[] hash = headers.get(bodies.size()).getHash();
+               bodies.add(executor.submit(new Callable<Block>() {
+                  public Block call() throws IOException {
+                     return peer.getBlock(hash);
+                  }
+               }));
+            }
+            Block b = bodies.get(i).get();
+            // drop the reference so connected bodies can be collected
+            bodies.set(i, null);
+            if (!headers.get(i).matches(b) || !blockChain.addBlock(b))
+               break;
+            connected++;
+         }
+         return connected;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("interrupted while fetching blocks", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         throw new IllegalStateException("failed to fetch blocks", e.getCause());
+      } finally {
+         // cancel what has not started, but never interrupt a running fetch: 
+         // an interrupt closes the FileChannel a local peer is reading from
+         for (Future<Block> body : bodies)
+            if (body != null)
+               body.cancel(false);
+         executor.shutdown();
+      }
+   }
+}
@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.util.List;
+
+/* A stand-in for a remote peer that serves the branch ending in tipHash 
+ * from a local block store
+ */
+public class LocalPeer implements HeadersFirstSync.Peer {
+
+   private final BlockStore store;
+   private final byte[] tipHash;
+
+   public LocalPeer(BlockStore store, byte[] tipHash) {
+      this.store = store;
+      this.tipHash = tipHash;
+   }
+
+   public BlockHeader getTip() {
+      return store.getHeader(tipHash);
+   }
+
+   public List<BlockHeader> getHeaders(byte[] hash, int max) {
+      return store.getHeaders(hash, max);
+   }
+
+   public Block getBlock(byte[] hash) throws IOException {
+      return store.getBlock(hash);
+   }
+
+   public List<Transaction> getBlockTransactions(byte[] hash, int[] indexes) throws IOException {
+      Block b = store.getBlock(hash);
+      return b == null ? null : CompactBlock.getTransactions(b, indexes);
+   }
+}
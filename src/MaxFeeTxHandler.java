@@ -0,0 +1,398 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+public class MaxFeeTxHandler {
+
+	/* Epochs with at most this many candidate transactions are solved exactly
+	 * by branch-and-bound; larger epochs use greedy selection with repair.
+	 */
+	public static final int EXACT_LIMIT = 20;
+
+	// bound on the number of improvement passes made by the repair step
+	private static final int MAX_REPAIR_ROUNDS = 4;
+
+	private static final double EPSILON = 1e-9;
+
+	private UTXOPool publicLedger;
+	private double totalFees;
+	// checks single transactions against publicLedger; built on first use
+	// and dropped whenever handleTxs changes the ledger
+	private TxHandler validator;
+
+	/* Creates a public ledger whose current UTXOPool (collection of unspent
+	 * transaction outputs) is utxoPool. This makes a defensive copy of
+	 * utxoPool by using the UTXOPool(UTXOPool uPool) constructor.
+	 */
+	public MaxFeeTxHandler(UTXOPool utxoPool) {
+		publicLedger = new UTXOPool(utxoPool);
+	}
+
+	/* Returns true if tx is valid against the current UTXO pool, using the
+	 * same rules as TxHandler.isValidTx.
+	 */
+	public boolean isValidTx(Transaction tx) {
+		if (validator == null)
+			validator = new TxHandler(publicLedger);
+		return validator.isValidTx(tx);
+	}
+
+	/* Handles each epoch by receiving an unordered array of proposed
+	 * transactions and returning the mutually valid subset whose total fee
+	 * (sum of inputs minus sum of outputs) is as large as possible. The
+	 * accepted transactions are returned parents first and the current UTXO
+	 * pool is updated accordingly.
+	 */
+	public Transaction[] handleTxs(Transaction[] possibleTxs) {
+		FeeGraph graph = new FeeGraph(possibleTxs);
+		boolean[] selected = graph.size() <= EXACT_LIMIT ? graph.branchAndBound() : graph.greedyWithRepair();
+		graph.fill(selected);
+
+		ArrayList<Transaction> acceptedTxs = new ArrayList<Transaction>();
+		totalFees = 0.0;
+		validator = null;
+		for (int i : graph.order) {
+			if (!selected[i])
+				continue;
+			Transaction tx = graph.txs[i];
+			acceptedTxs.add(tx);
+			totalFees += graph.fee[i];
+
+			//remove claimed UTXOs from the public ledger
+			for (UTXO claimedOutput : graph.claims.get(i))
+				publicLedger.removeUTXO(claimedOutput);
+
+			//add new UTXOs to the public ledger
+			byte[] txHash = tx.getHash();
+			ArrayList<Transaction.Output> txOutputs = tx.getOutputs();
+			for (int j = 0; j < txOutputs.size(); j++)
+				publicLedger.addUTXO(new UTXO(txHash, j), txOutputs.get(j));
+		}
+		return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+	}
+
+	/* Returns the total fee collected by the transactions accepted in the
+	 * last call to handleTxs, or 0 if handleTxs has not been called.
+	 */
+	public double getTotalFees() {
+		return totalFees;
+	}
+
+	/* Returns the current UTXO pool. If no outstanding UTXOs, returns an empty (non-null) UTXOPool object. */
+	public UTXOPool getUTXOPool() {
+		return publicLedger;
+	}
+
+	/* Conflict and dependency graph over the individually valid transactions
+	 * of one epoch. Node i may only be selected together with all of its
+	 * in-epoch parents, and never together with a node that claims one of
+	 * the same outputs.
+	 */
+	private class FeeGraph {
+		Transaction[] txs;
+		double[] fee;
+		ArrayList<ArrayList<UTXO>> claims;
+		int[][] parents;
+		int[][] children;
+		int[][] conflicts;
+		// valid nodes, parents before children
+		int[] order;
+
+		// search state
+		private boolean[] chosen;
+		private int[] blocked;
+		private boolean[] best;
+		private double bestFee;
+
+		FeeGraph(Transaction[] possibleTxs) {
+			//drop repeated transactions, keeping the first copy
+			HashMap<ByteArrayWrapper, Integer> creator = new HashMap<ByteArrayWrapper, Integer>();
+			ArrayList<Transaction> unique = new ArrayList<Transaction>();
+			for (Transaction tx : possibleTxs) {
+				ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+				if (!creator.containsKey(hash)) {
+					creator.put(hash, unique.size());
+					unique.add(tx);
+				}
+			}
+			int n = unique.size();
+			txs = unique.toArray(new Transaction[n]);
+			fee = new double[n];
+			claims = new ArrayList<ArrayList<UTXO>>();
+			parents = new int[n][];
+			children = new int[n][];
+			conflicts = new int[n][];
+
+			//scratch pool holding only the outputs this epoch can claim
+			UTXOPool scratch = new UTXOPool();
+			for (Transaction tx : txs) {
+				ArrayList<Transaction.Output> outputs = tx.getOutputs();
+				for (int j = 0; j < outputs.size(); j++)
+					scratch.addUTXO(new UTXO(tx.getHash(), j), outputs.get(j));
+			}
+			HashMap<UTXO, ArrayList<Integer>> claimants = new HashMap<UTXO, ArrayList<Integer>>();
+			ArrayList<ArrayList<Integer>> childLists = new ArrayList<ArrayList<Integer>>();
+			for (int i = 0; i < n; i++) {
+				childLists.add(new ArrayList<Integer>());
+				claims.add(new ArrayList<UTXO>());
+				for (Transaction.Input input : txs[i].getInputs()) {
+					UTXO claimedOutput = new UTXO(input.prevTxHash, input.outputIndex);
+					claims.get(i).add(claimedOutput);
+					if (publicLedger.contains(claimedOutput))
+						scratch.addUTXO(claimedOutput, publicLedger.getTxOutput(claimedOutput));
+					ArrayList<Integer> list = claimants.get(claimedOutput);
+					if (list == null) {
+						list = new ArrayList<Integer>();
+						claimants.put(claimedOutput, list);
+					}
+					list.add(i);
+				}
+			}
+
+			//validate each transaction on its own, as if its parents were accepted
+			TxHandler validator = new TxHandler(scratch);
+			boolean[] valid = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				valid[i] = validator.isValidTx(txs[i]);
+				if (!valid[i])
+					continue;
+				for (UTXO claimedOutput : claims.get(i))
+					fee[i] += scratch.getTxOutput(claimedOutput).value;
+				for (Transaction.Output output : txs[i].getOutputs())
+					fee[i] -= output.value;
+			}
+
+			//link parents to children and record conflicting claims
+			int[] pending = new int[n];
+			for (int i = 0; i < n; i++) {
+				ArrayList<Integer> parentList = new ArrayList<Integer>();
+				for (UTXO claimedOutput : claims.get(i)) {
+					Integer parent = creator.get(new ByteArrayWrapper(claimedOutput.getTxHash()));
+					if (parent != null && !parentList.contains(parent)) {
+						parentList.add(parent);
+						childLists.get(parent).add(i);
+					}
+				}
+				parents[i] = toArray(parentList);
+				pending[i] = parentList.size();
+
+				ArrayList<Integer> conflictList = new ArrayList<Integer>();
+				for (UTXO claimedOutput : claims.get(i))
+					for (int j : claimants.get(claimedOutput))
+						if (j != i && !conflictList.contains(j))
+							conflictList.add(j);
+				conflicts[i] = toArray(conflictList);
+			}
+			for (int i = 0; i < n; i++)
+				children[i] = toArray(childLists.get(i));
+
+			//topological order over valid nodes; anything left waiting on an
+			//invalid parent (or caught in a cycle) is never selectable
+			int[] queue = new int[n];
+			int head = 0, tail = 0;
+			for (int i = 0; i < n; i++)
+				if (pending[i] == 0)
+					queue[tail++] = i;
+			ArrayList<Integer> sorted = new ArrayList<Integer>();
+			while (head < tail) {
+				int i = queue[head++];
+				if (valid[i])
+					sorted.add(i);
+				for (int c : children[i]) {
+					if (!valid[i])
+						valid[c] = false;
+					if (--pending[c] == 0)
+						queue[tail++] = c;
+				}
+			}
+			order = toArray(sorted);
+
+			chosen = new boolean[n];
+			blocked = new int[n];
+		}
+
+		int size() {
+			return order.length;
+		}
+
+		/* Exact search over include/exclude decisions in topological order,
+		 * pruned by the fees still reachable from the current partial set.
+		 */
+		boolean[] branchAndBound() {
+			best = new boolean[txs.length];
+			bestFee = -1.0;
+			search(0, 0.0);
+			return best;
+		}
+
+		private void search(int k, double currentFee) {
+			if (currentFee > bestFee + EPSILON) {
+				bestFee = currentFee;
+				best = chosen.clone();
+			}
+			if (k == order.length || currentFee + reachableFee(k) <= bestFee + EPSILON)
+				return;
+			int i = order[k];
+			if (selectable(i)) {
+				choose(i);
+				search(k + 1, currentFee + fee[i]);
+				unchoose(i);
+			}
+			search(k + 1, currentFee);
+		}
+
+		// upper bound on the fee still obtainable from order[k..]
+		private double reachableFee(int k) {
+			double bound = 0.0;
+			for (int j = k; j < order.length; j++)
+				if (blocked[order[j]] == 0)
+					bound += fee[order[j]];
+			return bound;
+		}
+
+		/* Takes transactions by descending fee, each together with whatever
+		 * ancestors it still needs, then repeatedly swaps out conflicting
+		 * subtrees whenever an excluded package would pay more.
+		 */
+		boolean[] greedyWithRepair() {
+			Integer[] byFee = new Integer[order.length];
+			for (int k = 0; k < order.length; k++)
+				byFee[k] = order[k];
+			Arrays.sort(byFee, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(fee[b], fee[a]);
+				}
+			});
+
+			for (int i : byFee) {
+				if (chosen[i])
+					continue;
+				ArrayList<Integer> pkg = packageOf(i);
+				if (pkg != null && evicted(pkg).isEmpty())
+					for (int j : pkg)
+						choose(j);
+			}
+
+			for (int round = 0; round < MAX_REPAIR_ROUNDS; round++) {
+				boolean improved = false;
+				for (int i : byFee) {
+					if (chosen[i])
+						continue;
+					ArrayList<Integer> pkg = packageOf(i);
+					if (pkg == null)
+						continue;
+					ArrayList<Integer> out = evicted(pkg);
+					if (evictsAncestor(pkg, out))
+						continue;
+					if (sumFees(pkg) > sumFees(out) + EPSILON) {
+						for (int j : out)
+							unchoose(j);
+						for (int j : pkg)
+							choose(j);
+						improved = true;
+					}
+				}
+				if (!improved)
+					break;
+			}
+			return chosen.clone();
+		}
+
+		/* Adds every remaining selectable transaction to selected. Valid
+		 * transactions never carry a negative fee, so this can only help.
+		 */
+		void fill(boolean[] selected) {
+			Arrays.fill(chosen, false);
+			Arrays.fill(blocked, 0);
+			for (int i : order)
+				if (selected[i])
+					choose(i);
+			for (int i : order)
+				if (!chosen[i] && selectable(i))
+					choose(i);
+			System.arraycopy(chosen, 0, selected, 0, chosen.length);
+		}
+
+		// i plus its unchosen ancestors, parents first; null if they conflict with each other
+		private ArrayList<Integer> packageOf(int i) {
+			ArrayList<Integer> pkg = new ArrayList<Integer>();
+			collectAncestors(i, pkg);
+			for (int a = 0; a < pkg.size(); a++)
+				for (int c : conflicts[pkg.get(a)])
+					if (pkg.contains(c))
+						return null;
+			return pkg;
+		}
+
+		private void collectAncestors(int i, ArrayList<Integer> pkg) {
+			if (chosen[i] || pkg.contains(i))
+				return;
+			for (int p : parents[i])
+				collectAncestors(p, pkg);
+			pkg.add(i);
+		}
+
+		// chosen nodes that must leave for pkg to enter, with their chosen descendants
+		private ArrayList<Integer> evicted(ArrayList<Integer> pkg) {
+			ArrayList<Integer> out = new ArrayList<Integer>();
+			for (int i : pkg)
+				for (int c : conflicts[i])
+					if (chosen[c])
+						collectDescendants(c, out);
+			return out;
+		}
+
+		// true if making room for pkg would also remove one of its own parents
+		private boolean evictsAncestor(ArrayList<Integer> pkg, ArrayList<Integer> out) {
+			for (int i : pkg)
+				for (int p : parents[i])
+					if (out.contains(p))
+						return true;
+			return false;
+		}
+
+		private void collectDescendants(int i, ArrayList<Integer> out) {
+			if (!chosen[i] || out.contains(i))
+				return;
+			out.add(i);
+			for (int c : children[i])
+				collectDescendants(c, out);
+		}
+
+		private double sumFees(ArrayList<Integer> nodes) {
+			double sum = 0.0;
+			for (int i : nodes)
+				sum += fee[i];
+			return sum;
+		}
+
+		private boolean selectable(int i) {
+			if (blocked[i] > 0)
+				return false;
+			for (int p : parents[i])
+				if (!chosen[p])
+					return false;
+			return true;
+		}
+
+		private void choose(int i) {
+			chosen[i] = true;
+			for (int c : conflicts[i])
+				blocked[c]++;
+		}
+
+		private void unchoose(int i) {
+			chosen[i] = false;
+			for (int c : conflicts[i])
+				blocked[c]--;
+		}
+	}
+
+	private static int[] toArray(ArrayList<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+}
@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/* Holds blocks whose parent has not arrived yet, keyed by the hash of that 
+ * parent, so they can be connected as soon as it does. The pool is bounded:
+ * blocks older than maxAgeMillis are dropped, and once it holds maxBlocks 
+ * blocks the oldest one makes room for the next.
+ */
+public class OrphanBlockPool {
+
+   private class Orphan {
+      Block b;
+      ByteArrayWrapper prevHash;
+      long arrival;
+   }
+
+   private int maxBlocks;
+   private long maxAgeMillis;
+   // by block hash, oldest first
+   private LinkedHashMap<ByteArrayWrapper, Orphan> orphans;
+   private HashMap<ByteArrayWrapper, ArrayList<Orphan>> byParent;
+
+   public OrphanBlockPool(int maxBlocks, long maxAgeMillis) {
+      this.maxBlocks = maxBlocks;
+      this.maxAgeMillis = maxAgeMillis;
+      orphans = new LinkedHashMap<ByteArrayWrapper, Orphan>();
+      byParent = new HashMap<ByteArrayWrapper, ArrayList<Orphan>>();
+   }
+
+   // buffer b until its parent arrives; returns false if b is already held
+   public boolean addBlock(Block b) {
+      ByteArrayWrapper hash = new ByteArrayWrapper(b.getHash());
+      if (orphans.containsKey(hash))
+         return false;
+      long now = System.currentTimeMillis();
+      expire(now);
+      while (orphans.size() >= maxBlocks && !orphans.isEmpty())
+         remove(orphans.values().iterator().next());
+
+      Orphan orphan = new Orphan();
+      orphan.b = b;
+      orphan.prevHash = new ByteArrayWrapper(b.getPrevBlockHash());
+      orphan.arrival = now;
+      orphans.put(hash, orphan);
+      ArrayList<Orphan> siblings = byParent.get(orphan.prevHash);
+      if (siblings == null) {
+         siblings = new ArrayList<Orphan>();
+         byParent.put(orphan.prevHash, siblings);
+      }
+      siblings.add(orphan);
+      return true;
+   }
+
+   // remove and return the buffered blocks whose parent is parentHash
+   public ArrayList<Block> removeChildren(byte[] parentHash) {
+      ArrayList<Block> children = new ArrayList<Block>();
+      ArrayList<Orphan> siblings = byParent.remove(new ByteArrayWrapper(parentHash));
+      if (siblings != null) {
+         for (Orphan orphan : siblings) {
+            orphans.remove(new ByteArrayWrapper(orphan.b.getHash()));
+            children.add(orphan.b);
+         }
+      }
+      return children;
+   }
+
+   public boolean contains(byte[] blockHash) {
+      return orphans.containsKey(new ByteArrayWrapper(blockHash));
+   }
+
+   public int size() {
+      return orphans.size();
+   }
+
+   // drop orphans that have waited longer than maxAgeMillis
+   private void expire(long now) {
+      Iterator<Orphan> it = orphans.values().iterator();
+      while (it.hasNext()) {
+         Orphan orphan = it.next();
+         if (now - orphan.arrival <= maxAgeMillis)
+            break;
+         it.remove();
+         removeFromParent(orphan);
+      }
+   }
+
+   private void remove(Orphan orphan) {
+      orphans.remove(new ByteArrayWrapper(orphan.b.getHash()));
+      removeFromParent(orphan);
+   }
+
+   private void removeFromParent(Orphan orphan) {
+      ArrayList<Orphan> siblings = byParent.get(orphan.prevHash);
+      siblings.remove(orphan);
+      if (siblings.isEmpty())
+         byParent.remove(orphan.prevHash);
+   }
+}
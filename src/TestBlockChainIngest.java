@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Driver class for how BlockChain takes in blocks: out of order, invalid, in batches
+public class TestBlockChainIngest extends TestFixtures {
+
+   public TestBlockChainIngest() {
+      super(5, 24);
+   }
+
+   public int test1() {
+      System.out.println("Blocks arriving children first are held and connected once their parent comes");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      ArrayList<Block> blocks = chain(genesisBlock, 5, 1);
+
+      boolean passes = true;
+      for (int i = blocks.size() - 1; i > 0; i--)
+         passes = passes && !blockChain.addBlock(blocks.get(i));
+      passes = passes && blockChain.getMaxHeightBlock() == genesisBlock;
+      passes = passes && blockChain.addBlock(blocks.get(0));
+      passes = passes && blockChain.getMaxHeightBlock() == blocks.get(blocks.size() - 1);
+      passes = passes && blockChain.getSnapshot().getHeight() == blocks.size() + 1;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("The orphan pool holds at most maxBlocks blocks, dropping the oldest, and forgets old ones");
+
+      Block genesisBlock = genesis();
+      ArrayList<Block> blocks = chain(genesisBlock, 6, 1);
+      OrphanBlockPool orphans = new OrphanBlockPool(3, Long.MAX_VALUE);
+
+      boolean passes = true;
+      for (int i = 1; i < blocks.size(); i++)
+         passes = passes && orphans.addBlock(blocks.get(i));
+      passes = passes && !orphans.addBlock(blocks.get(blocks.size() - 1));
+      passes = passes && orphans.size() == 3 && !orphans.contains(blocks.get(1).getHash())
+            && orphans.contains(blocks.get(5).getHash());
+      passes = passes && orphans.removeChildren(blocks.get(1).getHash()).isEmpty();
+      ArrayList<Block> children = orphans.removeChildren(blocks.get(3).getHash());
+      passes = passes && children.size() == 1 && children.get(0) == blocks.get(4) && orphans.size() == 2;
+
+      OrphanBlockPool aging = new OrphanBlockPool(10, 0);
+      aging.addBlock(blocks.get(1));
+      try {
+         Thread.sleep(5);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      aging.addBlock(blocks.get(2));
+      passes = passes && aging.size() == 1 && aging.contains(blocks.get(2).getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("A block with a badly signed transaction is rejected, remembered and never linked");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      // the genesis coinbase belongs to people.get(0)
+      Transaction forged = spend(people.get(1), output(genesisBlock.getCoinbase(), 0), Block.COINBASE);
+      Block bad = block(genesisBlock, 2, forged);
+      Block child = chain(bad, 1, 3).get(0);
+
+      boolean passes = !blockChain.addBlock(bad);
+      passes = passes && blockChain.isKnownInvalid(bad.getHash()) && !blockChain.addBlock(bad);
+      passes = passes && blockChain.getBlockHeight(bad.getHash()) == -1 && blockChain.getTips().size() == 1;
+      passes = passes && blockChain.getTransactionPool().isKnownInvalid(forged.getHash());
+      passes = passes && !blockChain.addBlock(child) && blockChain.getBlockHeight(child.getHash()) == -1;
+      passes = passes && blockChain.addBlock(chain(genesisBlock, 1, 4).get(0));
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test4() {
+      System.out.println("A block claiming the hash of another block cannot get that block marked invalid");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      Block good = chain(genesisBlock, 1, 1).get(0);
+      Block fake = new Block(genesisBlock.getHash(), people.get(2).getPublicKey());
+      Transaction overspend = spend(people.get(0), output(genesisBlock.getCoinbase(), 0), 2 * Block.COINBASE);
+      fake.addTransaction(overspend);
+      fake.setHash(good.getHash());
+
+      boolean passes = !blockChain.addBlock(fake);
+      passes = passes && !blockChain.isKnownInvalid(good.getHash());
+      passes = passes && blockChain.addBlock(good) && blockChain.getMaxHeightBlock() == good;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test5() {
+      System.out.println("addBlock and addBlocks agree on blocks and transactions whose hashes do not match their contents");
+
+      Block genesisBlock = genesis();
+      Block stale = new Block(genesisBlock.getHash(), people.get(1).getPublicKey());
+      stale.finalize();
+      stale.addTransaction(spend(people.get(0), output(genesisBlock.getCoinbase(), 0), Block.COINBASE));
+      Block misnamed = new Block(genesisBlock.getHash(), people.get(2).getPublicKey());
+      Transaction tx = spend(people.get(0), output(genesisBlock.getCoinbase(), 0), Block.COINBASE);
+      byte[] wrongHash = Arrays.copyOf(tx.getHash(), tx.getHash().length);
+      wrongHash[0] ^= 1;
+      tx.setHash(wrongHash);
+      misnamed.addTransaction(tx);
+      misnamed.finalize();
+
+      boolean passes = true;
+      for (Block b : new Block[] { stale, misnamed }) {
+         BlockChain sequential = new BlockChain(genesisBlock);
+         BlockChain batched = new BlockChain(genesisBlock);
+         boolean one = sequential.addBlock(b);
+         boolean many = batched.addBlocks(Arrays.asList(b), 2)[0];
+         passes = passes && !one && !many;
+         passes = passes && !sequential.isKnownInvalid(b.getHash()) && !batched.isKnownInvalid(b.getHash());
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test6() {
+      System.out.println("addBlocks on a shuffled batch with two branches ends where addBlock in order does");
+
+      Block genesisBlock = genesis();
+      ArrayList<Block> blocks = chain(genesisBlock, 6, 1);
+      // a block hash does not cover the coinbase, so the fork carries a
+      // transaction to tell it apart from blocks.get(2)
+      Block fork = block(blocks.get(1), 7, spend(people.get(2), output(blocks.get(1).getCoinbase(), 0), Block.COINBASE));
+      blocks.add(fork);
+      blocks.addAll(chain(fork, 4, 8));
+      BlockChain sequential = new BlockChain(genesisBlock);
+      boolean passes = true;
+      for (Block b : blocks)
+         passes = passes && sequential.addBlock(b);
+
+      ArrayList<Block> shuffled = new ArrayList<Block>(blocks);
+      Collections.shuffle(shuffled, new Random(37));
+      BlockChain batched = new BlockChain(genesisBlock);
+      boolean[] added = batched.addBlocks(shuffled, 3);
+      for (int i = 0; i < added.length; i++)
+         passes = passes && (added[i] || batched.getBlockHeight(shuffled.get(i).getHash()) > 0);
+      passes = passes && batched.getMaxHeightBlock() == sequential.getMaxHeightBlock();
+      passes = passes && batched.getTips().size() == sequential.getTips().size();
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test7() {
+      System.out.println("A copy of a valid block with a corrupted transaction hash cannot get the block marked invalid");
+
+      Block genesisBlock = genesis();
+      Transaction tx = spend(people.get(0), output(genesisBlock.getCoinbase(), 0), Block.COINBASE);
+      Block good = block(genesisBlock, 1, tx);
+      Transaction corrupted = new Transaction(tx);
+      byte[] wrongHash = Arrays.copyOf(tx.getHash(), tx.getHash().length);
+      wrongHash[0] ^= 1;
+      corrupted.setHash(wrongHash);
+      Block poisoned = block(genesisBlock, 1, corrupted);
+
+      boolean passes = Arrays.equals(poisoned.getHash(), good.getHash());
+      BlockChain sequential = new BlockChain(genesisBlock);
+      passes = passes && !sequential.addBlock(poisoned) && !sequential.isKnownInvalid(good.getHash());
+      passes = passes && sequential.addBlock(good) && sequential.getMaxHeightBlock() == good;
+      BlockChain batched = new BlockChain(genesisBlock);
+      passes = passes && !batched.addBlocks(Arrays.asList(poisoned), 2)[0] && !batched.isKnownInvalid(good.getHash());
+      passes = passes && batched.addBlocks(Arrays.asList(good), 2)[0] && batched.getMaxHeightBlock() == good;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test8() {
+      System.out.println("Snapshots taken while blocks are being added each hold one commit's block, pool and height");
+
+      Block genesisBlock = genesis();
+      final BlockChain blockChain = new BlockChain(genesisBlock);
+      // each block spends its parent's coinbase, so the pool on top of a
+      // block of height h holds h outputs, its own coinbase among them
+      final ArrayList<Block> blocks = new ArrayList<Block>();
+      final HashMap<Block, Integer> heights = new HashMap<Block, Integer>();
+      heights.put(genesisBlock, 1);
+      Block parent = genesisBlock;
+      for (int i = 1; i < 200; i++) {
+         Block b = block(parent, i % 24, spend(person((i - 1) % 24), output(parent.getCoinbase(), 0), Block.COINBASE));
+         blocks.add(b);
+         heights.put(b, i + 1);
+         parent = b;
+      }
+
+      final AtomicBoolean adding = new AtomicBoolean(true);
+      final AtomicBoolean consistent = new AtomicBoolean(true);
+      final AtomicInteger seen = new AtomicInteger();
+      Thread reader = new Thread(new Runnable() {
+         public void run() {
+            while (adding.get()) {
+               BlockChain.Snapshot snapshot = blockChain.getSnapshot();
+               Block b = snapshot.getMaxHeightBlock();
+               UTXOPool uPool = snapshot.getMaxHeightUTXOPool();
+               Integer height = heights.get(b);
+               if (height == null || snapshot.getHeight() != height || uPool.getAllUTXO().size() != height
+                     || !uPool.contains(output(b.getCoinbase(), 0)))
+                  consistent.set(false);
+               seen.incrementAndGet();
+            }
+         }
+      });
+      reader.start();
+      boolean passes = true;
+      BlockChain.Snapshot early = null;
+      for (Block b : blocks) {
+         passes = passes && blockChain.addBlock(b);
+         if (early == null)
+            early = blockChain.getSnapshot();
+      }
+      adding.set(false);
+      try {
+         reader.join();
+      } catch (InterruptedException e) {
+         passes = false;
+      }
+      passes = passes && consistent.get() && seen.get() > 0;
+      passes = passes && blockChain.getSnapshot().getHeight() == 200;
+
+      // the first snapshot is unchanged by everything added since, though
+      // the output it was mined on has long been spent
+      passes = passes && early.getMaxHeightBlock() == blocks.get(0) && early.getHeight() == 2;
+      passes = passes && early.getMaxHeightUTXOPool().getAllUTXO().size() == 2;
+      passes = passes && early.getMaxHeightUTXOPool().contains(output(blocks.get(0).getCoinbase(), 0));
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestBlockChainIngest tester = new TestBlockChainIngest();
+
+      int total = 0;
+      int numTests = 8;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+      total += tester.test4();
+      total += tester.test5();
+      total += tester.test6();
+      total += tester.test7();
+      total += tester.test8();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,227 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Driver class for BlockStore, on its own and behind a BlockChain
+public class TestBlockStore extends TestFixtures {
+
+   public TestBlockStore() {
+      super(6, 8);
+   }
+
+   public static boolean sameBlock(Block a, Block b) {
+      return a != null && b != null && Arrays.equals(a.getHash(), b.getHash())
+            && Arrays.equals(a.getRawBlock(), b.getRawBlock())
+            && Arrays.equals(a.getCoinbase().getRawTx(), b.getCoinbase().getRawTx());
+   }
+
+   public int test1() {
+      System.out.println("Blocks a BlockChain stored are all there after the store is reopened");
+
+      boolean passes = true;
+      File dir = null;
+      try {
+         dir = tempDir("blockstore");
+         Block genesisBlock = genesis();
+         BlockStore store = new BlockStore(dir);
+         BlockChain blockChain = new BlockChain(genesisBlock, store);
+         ArrayList<Block> blocks = new ArrayList<Block>();
+         blocks.add(genesisBlock);
+         Block parent = genesisBlock;
+         for (int i = 1; i < 6; i++) {
+            Block block = block(parent, i);
+            if (i == 2)
+               block = block(parent, i, spend(person(i - 1), output(parent.getCoinbase(), 0), Block.COINBASE));
+            passes = passes && blockChain.addBlock(block);
+            blocks.add(block);
+            parent = block;
+         }
+         store.close();
+
+         BlockStore reopened = new BlockStore(dir);
+         passes = passes && reopened.size() == blocks.size();
+         for (int i = 0; i < blocks.size(); i++) {
+            byte[] hash = blocks.get(i).getHash();
+            passes = passes && reopened.contains(hash) && reopened.getHeight(hash) == i + 1;
+            passes = passes && sameBlock(reopened.getBlock(hash), blocks.get(i));
+         }
+         byte[] tipHash = parent.getHash();
+         ArrayList<BlockHeader> headers = reopened.getHeaders(tipHash, 10);
+         passes = passes && headers.size() == blocks.size() && headers.get(headers.size() - 1).getPrevBlockHash() == null;
+         ArrayList<Block> range = reopened.getBlocks(tipHash, 2, 4);
+         passes = passes && range.size() == 3 && sameBlock(range.get(0), blocks.get(1))
+               && sameBlock(range.get(2), blocks.get(3));
+
+         Block next = block(parent, 6);
+         reopened.append(next, blocks.size() + 1);
+         passes = passes && reopened.size() == blocks.size() + 1 && reopened.getHeaders(next.getHash(), 10).size() == blocks.size() + 1;
+         reopened.close();
+      } catch (IOException e) {
+         e.printStackTrace(System.err);
+         passes = false;
+      } finally {
+         delete(dir);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("A store that grew its index and rolled over segments reopens intact");
+
+      boolean passes = true;
+      File dir = null;
+      try {
+         dir = tempDir("blockstore");
+         BlockStore store = new BlockStore(dir, 4096);
+         ArrayList<Block> blocks = new ArrayList<Block>();
+         Block parent = genesis();
+         blocks.add(parent);
+         store.append(parent, 1);
+         // a block hash does not cover the coinbase, so one payee is enough
+         for (int i = 1; i < 900; i++) {
+            Block block = block(parent, 1);
+            store.append(block, i + 1);
+            blocks.add(block);
+            parent = block;
+         }
+         store.close();
+
+         BlockStore reopened = new BlockStore(dir, 4096);
+         passes = passes && reopened.size() == blocks.size() && new File(dir, "blk00001.dat").exists();
+         for (int i = 0; i < blocks.size(); i++)
+            passes = passes && reopened.getHeight(blocks.get(i).getHash()) == i + 1;
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         long written = reopened.transferBlock(blocks.get(450).getHash(), Channels.newChannel(out));
+         passes = passes && written == out.size() && sameBlock(BlockCodec.decode(out.toByteArray()), blocks.get(450));
+         passes = passes && reopened.getBlocks(parent.getHash(), 1, blocks.size()).size() == blocks.size();
+         reopened.close();
+      } catch (IOException e) {
+         e.printStackTrace(System.err);
+         passes = false;
+      } finally {
+         delete(dir);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("A hash the store cannot key on leaves the chain whole and the block off disk");
+
+      boolean passes = true;
+      File dir = null;
+      try {
+         dir = tempDir("blockstore");
+         BlockStore store = new BlockStore(dir);
+         Block genesisBlock = new Block(null, people.get(0).getPublicKey());
+         genesisBlock.setHash(new byte[] { 1, 2, 3, 4 });
+         BlockChain blockChain = new BlockChain(genesisBlock, store);
+         passes = passes && store.size() == 0 && blockChain.getMaxHeightBlock() == genesisBlock;
+
+         Block block = block(genesisBlock, 1);
+         passes = passes && blockChain.addBlock(block) && store.size() == 1 && store.getHeight(block.getHash()) == 2;
+
+         Block misnamed = block(block, 2);
+         misnamed.setHash(Arrays.copyOf(misnamed.getHash(), 16));
+         passes = passes && !blockChain.addBlock(misnamed) && store.size() == 1;
+         passes = passes && blockChain.getMaxHeightBlock() == block && blockChain.getTips().size() == 1;
+         store.close();
+      } catch (IOException e) {
+         e.printStackTrace(System.err);
+         passes = false;
+      } finally {
+         delete(dir);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   // read back what transferRange wrote: each block as its length followed
+   // by its encoding
+   public static ArrayList<Block> readRange(byte[] data) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      while (in.available() > 0) {
+         byte[] encoded = new byte[in.readInt()];
+         in.readFully(encoded);
+         blocks.add(BlockCodec.decode(encoded));
+      }
+      return blocks;
+   }
+
+   public int test4() {
+      System.out.println("A range copied out with transferRange across a segment boundary reads back block for block");
+
+      boolean passes = true;
+      File dir = null;
+      try {
+         dir = tempDir("blockstore");
+         BlockStore store = new BlockStore(dir, 4096);
+         ArrayList<Block> blocks = new ArrayList<Block>();
+         Block parent = genesis();
+         blocks.add(parent);
+         store.append(parent, 1);
+         // work out, as the store does, the height of the first block in the
+         // second segment
+         long used = 4 + BlockCodec.encode(parent).length;
+         int boundary = -1;
+         for (int i = 1; i < 40; i++) {
+            Block block = block(parent, i % 8, spend(person((i - 1) % 8), output(parent.getCoinbase(), 0), Block.COINBASE));
+            store.append(block, i + 1);
+            blocks.add(block);
+            long length = 4 + BlockCodec.encode(block).length;
+            if (boundary < 0 && used + length > 4096)
+               boundary = i + 1;
+            used += length;
+            parent = block;
+         }
+         passes = passes && boundary > 3 && boundary + 2 <= blocks.size() && new File(dir, "blk00001.dat").exists();
+
+         int[][] ranges = { { boundary - 3, boundary + 2 }, { boundary - 1, boundary }, { 1, blocks.size() },
+               { boundary, boundary + 1 } };
+         for (int[] range : ranges) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int written = store.transferRange(parent.getHash(), range[0], range[1], Channels.newChannel(out));
+            ArrayList<Block> read = readRange(out.toByteArray());
+            passes = passes && written == range[1] - range[0] + 1 && read.size() == written;
+            for (int k = 0; k < read.size(); k++)
+               passes = passes && sameBlock(read.get(k), blocks.get(range[0] - 1 + k));
+         }
+
+         // an empty range writes nothing
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         passes = passes && store.transferRange(parent.getHash(), boundary + 1, boundary, Channels.newChannel(out)) == 0
+               && out.size() == 0;
+         store.close();
+      } catch (IOException e) {
+         e.printStackTrace(System.err);
+         passes = false;
+      } finally {
+         delete(dir);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestBlockStore tester = new TestBlockStore();
+
+      int total = 0;
+      int numTests = 4;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+      total += tester.test4();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
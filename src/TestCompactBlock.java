@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Driver class for relaying blocks as CompactBlocks and rebuilding them from the pool
+public class TestCompactBlock extends TestFixtures {
+
+   public TestCompactBlock() {
+      super(7, 6);
+   }
+
+   // a peer serving a fixed set of blocks that counts what it is asked for
+   public static class CountingPeer implements HeadersFirstSync.Peer {
+      public HashMap<ByteArrayWrapper, Block> blocks = new HashMap<ByteArrayWrapper, Block>();
+      public int blockRequests;
+      public int txRequests;
+      public int txsSent;
+
+      public void add(Block b) {
+         blocks.put(new ByteArrayWrapper(b.getHash()), b);
+      }
+
+      public BlockHeader getTip() {
+         return null;
+      }
+
+      public List<BlockHeader> getHeaders(byte[] hash, int max) {
+         return new ArrayList<BlockHeader>();
+      }
+
+      public Block getBlock(byte[] hash) {
+         blockRequests++;
+         return blocks.get(new ByteArrayWrapper(hash));
+      }
+
+      public List<Transaction> getBlockTransactions(byte[] hash, int[] indexes) {
+         txRequests++;
+         Block b = blocks.get(new ByteArrayWrapper(hash));
+         List<Transaction> txs = b == null ? null : CompactBlock.getTransactions(b, indexes);
+         if (txs != null)
+            txsSent += txs.size();
+         return txs;
+      }
+   }
+
+   /* A receiving chain that has a block splitting the genesis coinbase
+    * four ways, and a list holding that block followed by a block whose
+    * four transactions each spend one of the outputs
+    */
+   public BlockChain receiver(ArrayList<Block> blocks) {
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+
+      double quarter = Block.COINBASE / 4;
+      Transaction split = spend(person(0), new UTXO[] { output(genesisBlock.getCoinbase(), 0) },
+            new double[] { quarter, quarter, quarter, quarter }, person(1).getPublicKey());
+      Block first = block(genesisBlock, 1, split);
+      blockChain.addBlock(first);
+
+      Transaction[] spends = new Transaction[4];
+      for (int i = 0; i < 4; i++)
+         spends[i] = spend(person(1), output(split, i), quarter - 1);
+      Block second = block(first, 5, spends);
+      blocks.add(first);
+      blocks.add(second);
+      return blockChain;
+   }
+
+   public int test1() {
+      System.out.println("A block whose transactions are all in the pool is rebuilt without asking the peer");
+
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      BlockChain blockChain = receiver(blocks);
+      Block block = blocks.get(1);
+      for (Transaction tx : block.getTransactions())
+         blockChain.addTransaction(tx);
+      CountingPeer peer = new CountingPeer();
+      peer.add(block);
+
+      boolean passes = blockChain.getTransactionPool().size() == 4;
+      CompactBlock compact = new CompactBlock(block);
+      CompactBlock.Reconstruction partial = compact.reconstruct(blockChain.getTransactionPool());
+      passes = passes && partial.isComplete() && Arrays.equals(partial.getBlock().getHash(), block.getHash());
+      try {
+         passes = passes && new BlockHandler(blockChain).processCompactBlock(compact, peer);
+      } catch (IOException e) {
+         passes = false;
+      }
+      passes = passes && peer.blockRequests == 0 && peer.txRequests == 0;
+      passes = passes && Arrays.equals(blockChain.getMaxHeightBlock().getHash(), block.getHash());
+      passes = passes && blockChain.getTransactionPool().size() == 0;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("Only the transactions missing from the pool are fetched, after a round trip through BlockCodec");
+
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      BlockChain blockChain = receiver(blocks);
+      Block block = blocks.get(1);
+      blockChain.addTransaction(block.getTransaction(0));
+      blockChain.addTransaction(block.getTransaction(2));
+      CountingPeer peer = new CountingPeer();
+      peer.add(block);
+
+      boolean passes = true;
+      try {
+         CompactBlock compact = BlockCodec.decodeCompactBlock(BlockCodec.encode(new CompactBlock(block)));
+         CompactBlock.Reconstruction partial = compact.reconstruct(blockChain.getTransactionPool());
+         passes = passes && Arrays.equals(partial.getMissing(), new int[] { 1, 3 }) && partial.getBlock() == null;
+         passes = passes && new BlockHandler(blockChain).processCompactBlock(compact, peer);
+      } catch (IOException e) {
+         passes = false;
+      }
+      passes = passes && peer.blockRequests == 0 && peer.txRequests == 1 && peer.txsSent == 2;
+      passes = passes && Arrays.equals(blockChain.getMaxHeightBlock().getHash(), block.getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("Answers that do not fit are refused, and a wrong pick falls back to the full block");
+
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      BlockChain blockChain = receiver(blocks);
+      Block block = blocks.get(1);
+      CountingPeer peer = new CountingPeer();
+      peer.add(block);
+
+      CompactBlock compact = new CompactBlock(block);
+      CompactBlock.Reconstruction partial = compact.reconstruct(blockChain.getTransactionPool());
+      List<Transaction> shuffled = CompactBlock.getTransactions(block, new int[] { 1, 0, 2, 3 });
+      boolean passes = !partial.fill(shuffled) && partial.getMissing().length == 4;
+      passes = passes && !partial.fill(shuffled.subList(0, 3)) && partial.getMissing().length == 4;
+      passes = passes && CompactBlock.getTransactions(block, new int[] { 4 }) == null;
+
+      // a pool transaction spending the same output as slot 0, standing in
+      // for a short id collision that picks the wrong transaction
+      Transaction impostor = spend(person(1), new UTXO(block.getTransaction(0).getInput(0).prevTxHash, 0),
+            Block.COINBASE / 4 - 2);
+      blockChain.addTransaction(impostor);
+      long[] ids = compact.getShortIds().clone();
+      ids[0] = CompactBlock.shortId(compact.getSalt(), impostor.getHash());
+      CompactBlock colliding = new CompactBlock(block.getHeader(), block.getCoinbase(), compact.getSalt(), ids);
+      try {
+         passes = passes && new BlockHandler(blockChain).processCompactBlock(colliding, peer);
+      } catch (IOException e) {
+         passes = false;
+      }
+      passes = passes && peer.txRequests == 1 && peer.blockRequests == 1;
+      passes = passes && Arrays.equals(blockChain.getMaxHeightBlock().getHash(), block.getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   // data with the int at offset overwritten by value
+   public static byte[] withInt(byte[] data, int offset, int value) {
+      byte[] copy = data.clone();
+      ByteBuffer.wrap(copy).putInt(offset, value);
+      return copy;
+   }
+
+   // whether decoding data as a block, compact block or transaction fails
+   // cleanly, with an IOException
+   public static boolean refused(byte[] data, int kind) {
+      try {
+         if (kind == 0)
+            BlockCodec.decode(data);
+         else if (kind == 1)
+            BlockCodec.decodeCompactBlock(data);
+         else
+            BlockCodec.decodeTransaction(data);
+         return false;
+      } catch (IOException e) {
+         return true;
+      }
+   }
+
+   public int test4() {
+      System.out.println("Lengths and counts the data left could not hold are refused before anything is allocated");
+
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      receiver(blocks);
+      Block block = blocks.get(1);
+      byte[] encoded = BlockCodec.encode(block);
+      int txBytes = 0;
+      for (Transaction tx : block.getTransactions())
+         txBytes += BlockCodec.encode(tx).length;
+      int txCount = encoded.length - txBytes - 4;
+      boolean passes = refused(withInt(encoded, txCount, Integer.MAX_VALUE), 0);
+      passes = passes && refused(withInt(encoded, txCount, -2), 0);
+      // the length of the previous block hash
+      passes = passes && refused(withInt(encoded, 0, Integer.MAX_VALUE), 0);
+      passes = passes && refused(Arrays.copyOf(encoded, encoded.length - 1), 0);
+
+      CompactBlock compact = new CompactBlock(block);
+      byte[] compactEncoded = BlockCodec.encode(compact);
+      int idCount = compactEncoded.length - compact.getShortIds().length * CompactBlock.SHORT_ID_BYTES - 4;
+      passes = passes && refused(withInt(compactEncoded, idCount, Integer.MAX_VALUE), 1);
+
+      // a transaction with no inputs: its hash, then the two counts
+      Transaction tx = new Transaction();
+      tx.addOutput(1, person(0).getPublicKey());
+      tx.finalize();
+      byte[] txEncoded = BlockCodec.encode(tx);
+      int inputCount = 4 + tx.getHash().length;
+      passes = passes && refused(withInt(txEncoded, inputCount, Integer.MAX_VALUE), 2);
+      passes = passes && refused(withInt(txEncoded, inputCount + 4, Integer.MAX_VALUE), 2);
+      passes = passes && refused(withInt(txEncoded, inputCount + 4 + 4 + 8, 0), 2);
+      try {
+         passes = passes && Arrays.equals(BlockCodec.decodeTransaction(txEncoded).getRawTx(), tx.getRawTx());
+      } catch (IOException e) {
+         passes = false;
+      }
+
+      // every relay of a block shares its salt, so the pool's ids are reused
+      passes = passes && new CompactBlock(block).getSalt() == compact.getSalt();
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestCompactBlock tester = new TestCompactBlock();
+
+      int total = 0;
+      int numTests = 4;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+      total += tester.test4();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,133 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/* Shared set-up for the test drivers: a fixed set of people drawn from a
+ * seeded PRGen, outputs standing in for transactions outside the pool or
+ * chain under test, and signed spends and blocks over them. Each driver
+ * uses its own seed, so their keys and hashes never collide.
+ */
+public class TestFixtures {
+
+   public ArrayList<RSAKeyPair> people;
+   private final int seed;
+
+   public TestFixtures(int seed, int nPeople) {
+      this.seed = seed;
+      byte[] key = new byte[32];
+      for (int i = 0; i < 32; i++) {
+         key[i] = (byte) seed;
+      }
+
+      PRGen prGen = new PRGen(key);
+
+      people = new ArrayList<RSAKeyPair>();
+      for (int i = 0; i < nPeople; i++)
+         people.add(new RSAKeyPair(prGen, 265));
+   }
+
+   public RSAKeyPair person(int i) {
+      return people.get(i);
+   }
+
+   // output 0, worth value and owned by owner, of the i-th made-up
+   // transaction, added to uPool
+   public UTXO root(UTXOPool uPool, int i, double value, RSAKeyPair owner) {
+      Transaction tx = new Transaction();
+      tx.addOutput(value, owner.getPublicKey());
+      byte[] hash = new byte[32];
+      hash[0] = (byte) seed;
+      hash[1] = (byte) (i >> 8);
+      hash[2] = (byte) i;
+      tx.setHash(hash);
+      UTXO utxo = new UTXO(hash, 0);
+      uPool.addUTXO(utxo, tx.getOutput(0));
+      return utxo;
+   }
+
+   // a pool of nRoots outputs worth value each, owned in turn by the first
+   // nOwners people
+   public UTXOPool rootPool(int nRoots, double value, int nOwners) {
+      UTXOPool uPool = new UTXOPool();
+      for (int i = 0; i < nRoots; i++)
+         root(uPool, i, value, people.get(i % nOwners));
+      return uPool;
+   }
+
+   // a transaction spending claimed, all signed by signer, paying values to payee
+   public static Transaction spend(RSAKeyPair signer, UTXO[] claimed, double[] values, RSAKey payee) {
+      Transaction tx = new Transaction();
+      for (UTXO utxo : claimed)
+         tx.addInput(utxo.getTxHash(), utxo.getIndex());
+      for (double value : values)
+         tx.addOutput(value, payee);
+      for (int i = 0; i < claimed.length; i++)
+         tx.addSignature(signer.getPrivateKey().sign(tx.getRawDataToSign(i)), i);
+      tx.finalize();
+      return tx;
+   }
+
+   // a transaction moving claimed, owned by signer, back to signer
+   public static Transaction spend(RSAKeyPair signer, UTXO claimed, double value) {
+      return spend(signer, new UTXO[] { claimed }, new double[] { value }, signer.getPublicKey());
+   }
+
+   public static UTXO output(Transaction tx, int index) {
+      return new UTXO(tx.getHash(), index);
+   }
+
+   public Block genesis() {
+      Block genesisBlock = new Block(null, people.get(0).getPublicKey());
+      genesisBlock.finalize();
+      return genesisBlock;
+   }
+
+   /* A block on parent holding txs and paying person. A block hash does
+    * not cover the coinbase, whose hash depends only on the address paid,
+    * so blocks meant to differ need different parents, transactions or, for
+    * their coinbases to differ, payees.
+    */
+   public Block block(Block parent, int person, Transaction... txs) {
+      Block b = new Block(parent.getHash(), people.get(person).getPublicKey());
+      for (Transaction tx : txs)
+         b.addTransaction(tx);
+      b.finalize();
+      return b;
+   }
+
+   // a chain of n empty blocks on top of parent, paying firstPerson onwards
+   public ArrayList<Block> chain(Block parent, int n, int firstPerson) {
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      for (int i = 0; i < n; i++) {
+         parent = block(parent, firstPerson + i);
+         blocks.add(parent);
+      }
+      return blocks;
+   }
+
+   public static boolean samePool(UTXOPool a, UTXOPool b) {
+      ArrayList<UTXO> utxos = a.getAllUTXO();
+      if (utxos.size() != b.getAllUTXO().size())
+         return false;
+      for (UTXO utxo : utxos)
+         if (b.getTxOutput(utxo) != a.getTxOutput(utxo))
+            return false;
+      return true;
+   }
+
+   public static File tempDir(String prefix) throws IOException {
+      return Files.createTempDirectory(prefix).toFile();
+   }
+
+   // remove a flat directory made by tempDir
+   public static void delete(File dir) {
+      if (dir == null)
+         return;
+      File[] files = dir.listFiles();
+      if (files != null)
+         for (File file : files)
+            file.delete();
+      dir.delete();
+   }
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+
+// Driver class for the tip set and fork points BlockChain keeps
+public class TestForkChoice extends TestFixtures {
+
+   public TestForkChoice() {
+      super(11, 8);
+   }
+
+   public int test1() {
+      System.out.println("The fork point of two branches is the last block they share, whichever is asked first");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      Block a2 = block(genesisBlock, 1);
+      Block a3 = block(a2, 2);
+      Transaction x = spend(person(1), output(a2.getCoinbase(), 0), Block.COINBASE);
+      Block b3 = block(a2, 3, x);
+      Block b4 = block(b3, 4);
+      Block c2 = block(genesisBlock, 5, spend(person(0), output(genesisBlock.getCoinbase(), 0), Block.COINBASE));
+
+      boolean passes = blockChain.addBlock(a2) && blockChain.addBlock(a3) && blockChain.addBlock(b3);
+      passes = passes && blockChain.addBlock(b4) && blockChain.addBlock(c2);
+      passes = passes && blockChain.getForkPoint(a3.getHash(), b4.getHash()) == a2;
+      passes = passes && blockChain.getForkPoint(b4.getHash(), a3.getHash()) == a2;
+      passes = passes && blockChain.getForkPoint(a3.getHash(), b3.getHash()) == a2;
+      passes = passes && blockChain.getForkPoint(c2.getHash(), b4.getHash()) == genesisBlock;
+
+      ArrayList<Block> tips = blockChain.getTips();
+      passes = passes && tips.size() == 3 && tips.get(0) == b4 && tips.contains(a3) && tips.contains(c2);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("On one branch the fork point is the lower block, and an unknown block has none");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      ArrayList<Block> blocks = chain(genesisBlock, 4, 1);
+      boolean passes = true;
+      for (Block b : blocks)
+         passes = passes && blockChain.addBlock(b);
+
+      Block top = blocks.get(3);
+      passes = passes && blockChain.getForkPoint(blocks.get(1).getHash(), top.getHash()) == blocks.get(1);
+      passes = passes && blockChain.getForkPoint(top.getHash(), genesisBlock.getHash()) == genesisBlock;
+      passes = passes && blockChain.getForkPoint(top.getHash(), top.getHash()) == top;
+
+      Block unknown = block(top, 6);
+      passes = passes && blockChain.getForkPoint(unknown.getHash(), top.getHash()) == null;
+      passes = passes && blockChain.getForkPoint(top.getHash(), unknown.getHash()) == null;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("Branches whose common ancestor was pruned have no fork point, though each still has its own ancestors");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      Block a2 = block(genesisBlock, 1);
+      Block a3 = block(a2, 2);
+      Block b3 = block(a2, 3, spend(person(0), output(genesisBlock.getCoinbase(), 0), Block.COINBASE));
+      boolean passes = blockChain.addBlock(a2) && blockChain.addBlock(a3) && blockChain.addBlock(b3);
+      passes = passes && blockChain.getForkPoint(a3.getHash(), b3.getHash()) == a2;
+
+      // grow the main branch until a2, where the branches meet, is pruned
+      Block tip = a3;
+      for (int height = 4; height <= BlockChain.CUT_OFF_AGE + 3; height++) {
+         tip = block(tip, 4);
+         passes = passes && blockChain.addBlock(tip);
+      }
+      passes = passes && blockChain.getBlockHeight(a2.getHash()) == -1 && blockChain.getBlockHeight(b3.getHash()) == 3;
+      passes = passes && blockChain.getForkPoint(tip.getHash(), b3.getHash()) == null;
+      passes = passes && blockChain.getForkPoint(b3.getHash(), tip.getHash()) == null;
+      passes = passes && blockChain.getForkPoint(tip.getHash(), a3.getHash()) == a3;
+      passes = passes && blockChain.getTips().size() == 2 && blockChain.getTips().get(0) == tip;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestForkChoice tester = new TestForkChoice();
+
+      int total = 0;
+      int numTests = 3;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+// Driver class for HeadersFirstSync and the assume-valid block it feeds
+public class TestHeadersFirstSync extends TestFixtures {
+
+   public TestHeadersFirstSync() {
+      super(10, 8);
+   }
+
+   // a peer serving one branch of headers, lowest first, and whatever
+   // bodies it is given, which need not match them
+   public static class BranchPeer implements HeadersFirstSync.Peer {
+      public ArrayList<BlockHeader> headers = new ArrayList<BlockHeader>();
+      public HashMap<ByteArrayWrapper, Block> blocks = new HashMap<ByteArrayWrapper, Block>();
+
+      public BranchPeer(List<Block> branch) {
+         for (Block b : branch) {
+            headers.add(b.getHeader());
+            add(b);
+         }
+      }
+
+      public void add(Block b) {
+         blocks.put(new ByteArrayWrapper(b.getHash()), b);
+      }
+
+      public BlockHeader getTip() {
+         return headers.isEmpty() ? null : headers.get(headers.size() - 1);
+      }
+
+      public List<BlockHeader> getHeaders(byte[] hash, int max) {
+         ArrayList<BlockHeader> batch = new ArrayList<BlockHeader>();
+         int i = headers.size() - 1;
+         while (i >= 0 && !new ByteArrayWrapper(headers.get(i).getHash()).equals(new ByteArrayWrapper(hash)))
+            i--;
+         for (; i >= 0 && batch.size() < max; i--)
+            batch.add(headers.get(i));
+         return batch;
+      }
+
+      public Block getBlock(byte[] hash) {
+         return blocks.get(new ByteArrayWrapper(hash));
+      }
+
+      public List<Transaction> getBlockTransactions(byte[] hash, int[] indexes) {
+         Block b = getBlock(hash);
+         return b == null ? null : CompactBlock.getTransactions(b, indexes);
+      }
+   }
+
+   // a transaction moving the genesis coinbase, owned by person 0, but
+   // signed by person 1
+   public Transaction badlySigned(Block genesisBlock) {
+      return spend(person(1), output(genesisBlock.getCoinbase(), 0), Block.COINBASE);
+   }
+
+   public static List<Block> branch(Block... blocks) {
+      ArrayList<Block> branch = new ArrayList<Block>();
+      Collections.addAll(branch, blocks);
+      return branch;
+   }
+
+   public int test1() {
+      System.out.println("Signatures in the assume-valid block and its proven ancestors are not checked, and those above it are");
+
+      Block genesisBlock = genesis();
+      Block b2 = block(genesisBlock, 1, badlySigned(genesisBlock));
+      Block b3 = block(b2, 2);
+      Block b4 = block(b3, 3, spend(person(2), output(b2.getCoinbase(), 0), Block.COINBASE));
+
+      BlockChain full = new BlockChain(genesisBlock);
+      boolean passes = !full.addBlock(b2);
+
+      BlockChain direct = new BlockChain(genesisBlock);
+      direct.setAssumeValid(b3.getHash());
+      passes = passes && direct.addAssumedValid(branch(b2, b3)) == 2;
+      passes = passes && direct.addBlock(b2) && direct.addBlock(b3) && !direct.addBlock(b4);
+
+      BlockChain synced = new BlockChain(genesisBlock);
+      synced.setAssumeValid(b3.getHash());
+      try {
+         passes = passes && new HeadersFirstSync(synced, 2).sync(new BranchPeer(branch(genesisBlock, b2, b3, b4))) == 2;
+      } catch (IOException e) {
+         passes = false;
+      }
+      passes = passes && synced.getMaxHeightBlock() == b3 && synced.getBlockHeight(b4.getHash()) == -1;
+
+      synced.setAssumeValid(null);
+      passes = passes && synced.getAssumeValid() == null && synced.addAssumedValid(branch(b2, b3)) == 0;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("A block the peer's headers claim as parent of the assume-valid block is checked in full");
+
+      Block genesisBlock = genesis();
+      Block forged = block(genesisBlock, 1, badlySigned(genesisBlock));
+      Block a2 = block(genesisBlock, 2);
+      Block assumeValid = block(a2, 3);
+
+      BlockChain direct = new BlockChain(genesisBlock);
+      direct.setAssumeValid(assumeValid.getHash());
+      boolean passes = direct.addAssumedValid(branch(forged, assumeValid)) == 1;
+      passes = passes && !direct.addBlock(forged);
+
+      // a body only claiming the assume-valid hash earns nothing
+      Block impostor = block(genesisBlock, 4, badlySigned(genesisBlock));
+      impostor.setHash(assumeValid.getHash());
+      passes = passes && direct.addAssumedValid(branch(impostor)) == 0;
+
+      // headers naming the forged block as the assume-valid block's parent
+      BlockChain synced = new BlockChain(genesisBlock);
+      synced.setAssumeValid(assumeValid.getHash());
+      BranchPeer peer = new BranchPeer(branch(genesisBlock, forged));
+      peer.headers.add(new BlockHeader(assumeValid.getHash(), forged.getHash()));
+      peer.add(assumeValid);
+      try {
+         passes = passes && new HeadersFirstSync(synced, 2).sync(peer) == 0;
+         passes = passes && synced.getBlockHeight(forged.getHash()) == -1;
+         passes = passes && new HeadersFirstSync(synced, 2).sync(new BranchPeer(branch(genesisBlock, a2, assumeValid))) == 2;
+      } catch (IOException e) {
+         passes = false;
+      }
+      passes = passes && synced.getMaxHeightBlock() == assumeValid;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("A new chain catches up with a store-backed chain through BlockHandler.syncFrom");
+
+      boolean passes = true;
+      File dir = null;
+      try {
+         dir = tempDir("sync");
+         Block genesisBlock = genesis();
+         BlockStore store = new BlockStore(dir);
+         BlockChain source = new BlockChain(genesisBlock, store);
+         Block parent = genesisBlock;
+         for (int i = 1; i <= 30; i++) {
+            Block b = i % 5 == 0 ? block(parent, i % 8, spend(person((i - 1) % 8), output(parent.getCoinbase(), 0), Block.COINBASE))
+                  : block(parent, i % 8);
+            passes = passes && source.addBlock(b);
+            parent = b;
+         }
+
+         BlockChain blockChain = new BlockChain(genesisBlock);
+         BlockHandler handler = new BlockHandler(blockChain);
+         LocalPeer peer = new LocalPeer(store, parent.getHash());
+         passes = passes && handler.syncFrom(peer) == 30 && handler.syncFrom(peer) == 0;
+         passes = passes && Arrays.equals(blockChain.getMaxHeightBlock().getHash(), parent.getHash());
+         // the bodies were decoded from disk, so compare the outputs by value
+         UTXOPool synced = blockChain.getMaxHeightUTXOPool();
+         UTXOPool expected = source.getMaxHeightUTXOPool();
+         passes = passes && synced.getAllUTXO().size() == expected.getAllUTXO().size();
+         for (UTXO utxo : expected.getAllUTXO())
+            passes = passes && expected.getTxOutput(utxo).equals(synced.getTxOutput(utxo));
+         store.close();
+      } catch (IOException e) {
+         e.printStackTrace(System.err);
+         passes = false;
+      } finally {
+         delete(dir);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   // a made-up header, its hash and its parent's standing for the i-th and
+   // (i+1)-th blocks of a branch the chain has never seen
+   public static BlockHeader madeUp(int i, int parent) {
+      return new BlockHeader(madeUpHash(i), madeUpHash(parent));
+   }
+
+   public static byte[] madeUpHash(int i) {
+      byte[] hash = new byte[32];
+      hash[0] = (byte) 0xff;
+      hash[1] = (byte) (i >> 24);
+      hash[2] = (byte) (i >> 16);
+      hash[3] = (byte) (i >> 8);
+      hash[4] = (byte) i;
+      return hash;
+   }
+
+   public int test4() {
+      System.out.println("Header walks a peer would keep going forever, or that do not link, end with nothing");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      HeadersFirstSync sync = new HeadersFirstSync(blockChain, 2);
+      ArrayList<HeadersFirstSync.Peer> peers = new ArrayList<HeadersFirstSync.Peer>();
+
+      // two headers naming each other as parent
+      peers.add(new BranchPeer(branch()) {
+         public BlockHeader getTip() {
+            return madeUp(0, 1);
+         }
+
+         public List<BlockHeader> getHeaders(byte[] hash, int max) {
+            int i = hash[4];
+            return Arrays.asList(madeUp(i, 1 - i));
+         }
+      });
+      // a branch that never ends, served in full batches
+      peers.add(new BranchPeer(branch()) {
+         public BlockHeader getTip() {
+            return madeUp(0, 1);
+         }
+
+         public List<BlockHeader> getHeaders(byte[] hash, int max) {
+            int first = ((hash[1] & 0xff) << 24) | ((hash[2] & 0xff) << 16) | ((hash[3] & 0xff) << 8) | (hash[4] & 0xff);
+            ArrayList<BlockHeader> batch = new ArrayList<BlockHeader>();
+            for (int i = first; i < first + max; i++)
+               batch.add(madeUp(i, i + 1));
+            return batch;
+         }
+      });
+      // a batch larger than asked for
+      peers.add(new BranchPeer(branch()) {
+         public BlockHeader getTip() {
+            return madeUp(0, 1);
+         }
+
+         public List<BlockHeader> getHeaders(byte[] hash, int max) {
+            ArrayList<BlockHeader> batch = new ArrayList<BlockHeader>();
+            for (int i = 0; i <= max; i++)
+               batch.add(madeUp(i, i + 1));
+            return batch;
+         }
+      });
+      // a second batch that does not carry on from the first
+      peers.add(new BranchPeer(branch()) {
+         public BlockHeader getTip() {
+            return madeUp(0, 1);
+         }
+
+         public List<BlockHeader> getHeaders(byte[] hash, int max) {
+            ArrayList<BlockHeader> batch = new ArrayList<BlockHeader>();
+            int first = hash[4] == 0 ? 0 : 7;
+            for (int i = first; i < first + 3; i++)
+               batch.add(madeUp(i, i + 1));
+            return batch;
+         }
+      });
+
+      boolean passes = true;
+      try {
+         for (HeadersFirstSync.Peer peer : peers)
+            passes = passes && sync.getHeaders(peer).isEmpty() && sync.sync(peer) == 0;
+      } catch (IOException e) {
+         passes = false;
+      }
+      passes = passes && blockChain.getMaxHeightBlock() == genesisBlock;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestHeadersFirstSync tester = new TestHeadersFirstSync();
+
+      int total = 0;
+      int numTests = 4;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+      total += tester.test4();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,168 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+// Driver class for MaxFeeTxHandler
+public class TestMaxFeeTxHandler extends TestFixtures {
+
+   public Random random;
+
+   public TestMaxFeeTxHandler() {
+      super(2, 4);
+      random = new Random(26);
+   }
+
+   // claimed and the outputs paying values all belong to people.get(0)
+   public Transaction spend(UTXO[] claimed, double[] values) {
+      return spend(person(0), claimed, values, person(0).getPublicKey());
+   }
+
+   /* n random transactions over uPool: each claims one or two outputs of
+    * the pool or of earlier transactions, some already claimed, and keeps
+    * a random share of their value as its fee
+    */
+   public Transaction[] randomEpoch(UTXOPool uPool, int n) {
+      ArrayList<UTXO> outputs = new ArrayList<UTXO>(uPool.getAllUTXO());
+      HashMap<UTXO, Double> values = new HashMap<UTXO, Double>();
+      for (UTXO utxo : outputs)
+         values.put(utxo, uPool.getTxOutput(utxo).value);
+      Transaction[] txs = new Transaction[n];
+      for (int i = 0; i < n; i++) {
+         int nInputs = 1 + random.nextInt(2);
+         UTXO[] claimed = new UTXO[nInputs];
+         double total = 0;
+         for (int k = 0; k < nInputs; k++) {
+            UTXO utxo = outputs.get(random.nextInt(outputs.size()));
+            while (k == 1 && utxo.equals(claimed[0]))
+               utxo = outputs.get(random.nextInt(outputs.size()));
+            claimed[k] = utxo;
+            total += values.get(utxo);
+         }
+         double kept = total * (0.6 + 0.4 * random.nextDouble());
+         double[] split = random.nextBoolean() ? new double[] { kept } : new double[] { kept / 2, kept / 2 };
+         txs[i] = spend(claimed, split);
+         for (int j = 0; j < split.length; j++) {
+            UTXO utxo = new UTXO(txs[i].getHash(), j);
+            outputs.add(utxo);
+            values.put(utxo, split[j]);
+         }
+      }
+      return txs;
+   }
+
+   // the total fee of txs if, applied in some order, they are mutually
+   // valid on top of uPool, and -1 otherwise
+   public static double feeIfValid(UTXOPool uPool, ArrayList<Transaction> txs) {
+      TxHandler handler = new TxHandler(uPool);
+      ArrayList<Transaction> left = new ArrayList<Transaction>(txs);
+      double fee = 0;
+      boolean progress = true;
+      while (!left.isEmpty() && progress) {
+         progress = false;
+         for (int i = 0; i < left.size(); i++) {
+            Transaction tx = left.get(i);
+            UTXOPool before = new UTXOPool(handler.getUTXOPool());
+            if (handler.tryApply(tx)) {
+               for (Transaction.Input in : tx.getInputs())
+                  fee += before.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex)).value;
+               for (Transaction.Output out : tx.getOutputs())
+                  fee -= out.value;
+               left.remove(i--);
+               progress = true;
+            }
+         }
+      }
+      return left.isEmpty() ? fee : -1;
+   }
+
+   // the largest fee any mutually valid subset of txs pays, by trying them all
+   public static double bruteForceMaxFee(UTXOPool uPool, Transaction[] txs) {
+      double best = 0;
+      for (int mask = 1; mask < (1 << txs.length); mask++) {
+         ArrayList<Transaction> subset = new ArrayList<Transaction>();
+         for (int i = 0; i < txs.length; i++)
+            if ((mask & (1 << i)) != 0)
+               subset.add(txs[i]);
+         best = Math.max(best, feeIfValid(uPool, subset));
+      }
+      return best;
+   }
+
+   // whether txs apply one after the other, in the order given, on top of uPool
+   public static boolean validInOrder(UTXOPool uPool, Transaction[] txs) {
+      TxHandler handler = new TxHandler(uPool);
+      for (Transaction tx : txs)
+         if (!handler.tryApply(tx))
+            return false;
+      return true;
+   }
+
+   public int test1() {
+      System.out.println("Small epochs: the accepted set pays as much as the best mutually valid subset");
+
+      boolean passes = true;
+      for (int round = 0; round < 6; round++) {
+         UTXOPool uPool = rootPool(4, 10, 1);
+         Transaction[] txs = randomEpoch(uPool, 10);
+         MaxFeeTxHandler handler = new MaxFeeTxHandler(uPool);
+         Transaction[] accepted = handler.handleTxs(txs);
+         double best = bruteForceMaxFee(uPool, txs);
+         double fee = feeIfValid(uPool, new ArrayList<Transaction>(Arrays.asList(accepted)));
+         passes = passes && validInOrder(uPool, accepted) && Math.abs(fee - best) < 1e-6
+               && Math.abs(handler.getTotalFees() - best) < 1e-6;
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("Large epochs: greedy selection returns a mutually valid set, parents first");
+
+      boolean passes = true;
+      for (int round = 0; round < 3; round++) {
+         UTXOPool uPool = rootPool(20, 10, 1);
+         Transaction[] txs = randomEpoch(uPool, MaxFeeTxHandler.EXACT_LIMIT + 30);
+         MaxFeeTxHandler handler = new MaxFeeTxHandler(uPool);
+         Transaction[] accepted = handler.handleTxs(txs);
+         double fee = feeIfValid(uPool, new ArrayList<Transaction>(Arrays.asList(accepted)));
+         passes = passes && accepted.length > 0 && validInOrder(uPool, accepted)
+               && Math.abs(fee - handler.getTotalFees()) < 1e-6;
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("isValidTx sees the pool as updated by handleTxs");
+
+      UTXOPool uPool = rootPool(1, 10, 1);
+      UTXO root = uPool.getAllUTXO().get(0);
+      Transaction low = spend(new UTXO[] { root }, new double[] { 9 });
+      Transaction high = spend(new UTXO[] { root }, new double[] { 8 });
+      MaxFeeTxHandler handler = new MaxFeeTxHandler(uPool);
+
+      boolean passes = handler.isValidTx(low) && handler.isValidTx(high);
+      Transaction[] accepted = handler.handleTxs(new Transaction[] { low, high });
+      passes = passes && accepted.length == 1 && accepted[0] == high;
+      passes = passes && !handler.isValidTx(low) && !handler.isValidTx(high);
+      passes = passes && handler.getUTXOPool().contains(new UTXO(high.getHash(), 0));
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestMaxFeeTxHandler tester = new TestMaxFeeTxHandler();
+
+      int total = 0;
+      int numTests = 3;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
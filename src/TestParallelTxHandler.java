@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+// Driver class for the parallel, speculative and streaming forms of TxHandler.handleTxs
+public class TestParallelTxHandler extends TestFixtures {
+
+   public Random random;
+
+   public TestParallelTxHandler() {
+      super(3, 4);
+      random = new Random(27);
+   }
+
+   /* n random transactions over uPool, in a shuffled order: chains,
+    * double spends, overspends and bad signatures all turn up, and a child
+    * may come before its parent
+    */
+   public Transaction[] randomEpoch(UTXOPool uPool, int n) {
+      UTXOPool known = new UTXOPool(uPool);
+      ArrayList<UTXO> outputs = new ArrayList<UTXO>(uPool.getAllUTXO());
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int i = 0; i < n; i++) {
+         UTXO claimed = outputs.get(random.nextInt(outputs.size()));
+         Transaction.Output spent = known.getTxOutput(claimed);
+         double value = spent.value * (random.nextInt(10) == 0 ? 1.5 : 0.9);
+         RSAKey owner = spent.address;
+         RSAKeyPair signer = people.get(0);
+         for (RSAKeyPair person : people)
+            if (person.getPublicKey() == owner)
+               signer = person;
+         if (random.nextInt(10) == 0)
+            signer = people.get((people.indexOf(signer) + 1) % people.size());
+
+         Transaction tx = new Transaction();
+         tx.addInput(claimed.getTxHash(), claimed.getIndex());
+         tx.addOutput(value / 2, people.get(random.nextInt(people.size())).getPublicKey());
+         tx.addOutput(value / 2, people.get(random.nextInt(people.size())).getPublicKey());
+         tx.addSignature(signer.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+         tx.finalize();
+         txs.add(tx);
+         for (int j = 0; j < tx.numOutputs(); j++) {
+            UTXO utxo = new UTXO(tx.getHash(), j);
+            known.addUTXO(utxo, tx.getOutput(j));
+            outputs.add(utxo);
+         }
+      }
+      for (int i = txs.size() - 1; i > 0; i--) {
+         if (random.nextInt(4) == 0) {
+            int j = random.nextInt(i + 1);
+            Transaction tmp = txs.get(i);
+            txs.set(i, txs.get(j));
+            txs.set(j, tmp);
+         }
+      }
+      return txs.toArray(new Transaction[txs.size()]);
+   }
+
+   public int test1() {
+      System.out.println("handleTxsParallel accepts what handleTxs accepts and leaves the same pool");
+
+      boolean passes = true;
+      for (int round = 0; round < 4; round++) {
+         UTXOPool uPool = rootPool(12, 10, people.size());
+         Transaction[] txs = randomEpoch(uPool, 80);
+         TxHandler sequential = new TxHandler(uPool);
+         TxHandler parallel = new TxHandler(uPool);
+         Transaction[] expected = sequential.handleTxs(txs);
+         Transaction[] actual = parallel.handleTxsParallel(txs, 4);
+         passes = passes && Arrays.equals(expected, actual) && samePool(sequential.getUTXOPool(), parallel.getUTXOPool());
+         for (ValidationResult.Stage stage : ValidationResult.Stage.values())
+            passes = passes && sequential.getRejectedCount(stage) == parallel.getRejectedCount(stage);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("handleTxsParallel over several epochs in a row");
+
+      UTXOPool uPool = rootPool(12, 10, people.size());
+      TxHandler sequential = new TxHandler(uPool);
+      TxHandler parallel = new TxHandler(uPool);
+      boolean passes = true;
+      for (int round = 0; round < 3; round++) {
+         Transaction[] txs = randomEpoch(sequential.getUTXOPool(), 40);
+         passes = passes && Arrays.equals(sequential.handleTxs(txs), parallel.handleTxsParallel(txs, 3));
+         passes = passes && samePool(sequential.getUTXOPool(), parallel.getUTXOPool());
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("handleTxsSpeculative accepts what handleTxs accepts and leaves the same pool");
+
+      boolean passes = true;
+      for (int round = 0; round < 4; round++) {
+         UTXOPool uPool = rootPool(12, 10, people.size());
+         Transaction[] txs = randomEpoch(uPool, 80);
+         TxHandler sequential = new TxHandler(uPool);
+         TxHandler speculative = new TxHandler(uPool);
+         Transaction[] expected = sequential.handleTxs(txs);
+         Transaction[] actual = speculative.handleTxsSpeculative(txs, 4);
+         passes = passes && Arrays.equals(expected, actual) && samePool(sequential.getUTXOPool(), speculative.getUTXOPool());
+         for (ValidationResult.Stage stage : ValidationResult.Stage.values())
+            passes = passes && sequential.getRejectedCount(stage) == speculative.getRejectedCount(stage);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test4() {
+      System.out.println("handleTxsSpeculative when every transaction conflicts with the one before it");
+
+      UTXOPool uPool = rootPool(1, 10, people.size());
+      UTXO root = uPool.getAllUTXO().get(0);
+      RSAKeyPair owner = people.get(0);
+      Transaction[] txs = new Transaction[20];
+      for (int i = 0; i < txs.length; i++) {
+         Transaction tx = new Transaction();
+         if (i % 2 == 0)
+            tx.addInput(root.getTxHash(), root.getIndex());
+         else
+            tx.addInput(txs[i - 1].getHash(), 0);
+         tx.addOutput(10 - i * 0.1, owner.getPublicKey());
+         tx.addSignature(owner.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+         tx.finalize();
+         txs[i] = tx;
+      }
+      TxHandler sequential = new TxHandler(uPool);
+      TxHandler speculative = new TxHandler(uPool);
+      Transaction[] expected = sequential.handleTxs(txs);
+      Transaction[] actual = speculative.handleTxsSpeculative(txs, 4);
+      boolean passes = expected.length == 2 && Arrays.equals(expected, actual)
+            && samePool(sequential.getUTXOPool(), speculative.getUTXOPool());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test5() {
+      System.out.println("handleTxs over a queue fed by another thread stops at endOfEpoch() and nothing else");
+
+      UTXOPool uPool = rootPool(12, 10, people.size());
+      final Transaction[] txs = randomEpoch(uPool, 40);
+      final BlockingQueue<Transaction> queue = new ArrayBlockingQueue<Transaction>(4);
+      Thread producer = new Thread(new Runnable() {
+         public void run() {
+            try {
+               for (int i = 0; i < txs.length; i++) {
+                  queue.put(txs[i]);
+                  if (i == txs.length / 2)
+                     queue.put(new Transaction());
+               }
+               queue.put(TxHandler.endOfEpoch());
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      });
+      producer.start();
+
+      TxHandler sequential = new TxHandler(uPool);
+      TxHandler streaming = new TxHandler(uPool);
+      final ArrayList<Transaction> accepted = new ArrayList<Transaction>();
+      boolean passes = true;
+      try {
+         streaming.handleTxs(queue, new Consumer<Transaction>() {
+            public void accept(Transaction tx) {
+               if (tx.getHash() != null)
+                  accepted.add(tx);
+            }
+         });
+         producer.join();
+      } catch (InterruptedException e) {
+         passes = false;
+      }
+      passes = passes && queue.isEmpty();
+      passes = passes && Arrays.equals(sequential.handleTxs(txs), accepted.toArray(new Transaction[accepted.size()]));
+      passes = passes && samePool(sequential.getUTXOPool(), streaming.getUTXOPool());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestParallelTxHandler tester = new TestParallelTxHandler();
+
+      int total = 0;
+      int numTests = 5;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+      total += tester.test4();
+      total += tester.test5();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
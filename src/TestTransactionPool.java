@@ -0,0 +1,333 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Driver class for TransactionPool admission, waiting and eviction
+public class TestTransactionPool extends TestFixtures {
+
+   public RSAKeyPair owner;
+   public Random random;
+
+   public TestTransactionPool() {
+      super(9, 8);
+      owner = person(0);
+      random = new Random(46);
+   }
+
+   // a transaction spending an output of a transaction nobody has seen
+   public Transaction orphan() {
+      byte[] hash = new byte[32];
+      random.nextBytes(hash);
+      return spend(owner, new UTXO(hash, 0), 1);
+   }
+
+   public int test1() {
+      System.out.println("A transaction waiting for an output becomes valid once the tip or its parent supplies it");
+
+      UTXOPool tip = new UTXOPool();
+      UTXO root = root(tip, 0, 10, owner);
+      Transaction parent = spend(owner, root, 9);
+      Transaction child = spend(owner, output(parent, 0), 7);
+      TransactionPool pool = new TransactionPool();
+
+      boolean passes = pool.addTransaction(parent) && !pool.isValid(parent.getHash());
+      passes = passes && Double.isNaN(pool.getFee(parent.getHash()));
+      passes = passes && pool.addTransaction(child) && !pool.isValid(child.getHash());
+      pool.setUTXOView(tip);
+      passes = passes && pool.isValid(parent.getHash()) && pool.isValid(child.getHash());
+      passes = passes && Math.abs(pool.getFee(parent.getHash()) - 1) < 1e-9 && Math.abs(pool.getFee(child.getHash()) - 2) < 1e-9;
+
+      TransactionPool childFirst = new TransactionPool();
+      childFirst.setUTXOView(tip);
+      passes = passes && childFirst.addTransaction(child) && !childFirst.isValid(child.getHash());
+      passes = passes && childFirst.addTransaction(parent) && childFirst.isValid(child.getHash());
+      passes = passes && childFirst.selectTransactions(tip, Long.MAX_VALUE).size() == 2;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("A flood of waiting transactions goes before any valid one and stays within its bounds");
+
+      UTXOPool tip = new UTXOPool();
+      ArrayList<Transaction> valid = new ArrayList<Transaction>();
+      for (int i = 0; i < 10; i++)
+         valid.add(spend(owner, root(tip, i, 10, owner), 9));
+      long validBytes = 0;
+      for (Transaction tx : valid)
+         validBytes += BlockCodec.encode(tx).length;
+
+      TransactionPool pool = new TransactionPool(validBytes * 3, Long.MAX_VALUE);
+      pool.setUTXOView(tip);
+      boolean passes = true;
+      for (Transaction tx : valid)
+         passes = passes && pool.addTransaction(tx);
+      for (int i = 0; i < 200; i++)
+         pool.addTransaction(orphan());
+      passes = passes && pool.getBytes() <= validBytes * 3;
+      for (Transaction tx : valid)
+         passes = passes && pool.isValid(tx.getHash());
+
+      TransactionPool roomy = new TransactionPool();
+      roomy.setUTXOView(tip);
+      roomy.addTransaction(valid.get(0));
+      for (int i = 0; i < TransactionPool.MAX_WAITING_TXS + 50; i++)
+         roomy.addTransaction(orphan());
+      passes = passes && roomy.size() == TransactionPool.MAX_WAITING_TXS + 1 && roomy.isValid(valid.get(0).getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("A spend of an output a connected block already spent is dropped, not left waiting");
+
+      UTXOPool before = new UTXOPool();
+      UTXO root = root(before, 0, 10, owner);
+      Transaction x = spend(owner, root, 9);
+      Transaction y = spend(owner, output(x, 0), 8);
+      Transaction late = spend(owner, output(x, 0), 5);
+      Block b = new Block(new byte[32], owner.getPublicKey());
+      b.addTransaction(x);
+      b.addTransaction(y);
+      b.finalize();
+      UTXOPool after = new UTXOPool();
+      after.addUTXO(output(y, 0), y.getOutput(0));
+
+      TransactionPool pool = new TransactionPool();
+      pool.setUTXOView(before);
+      boolean passes = pool.addTransaction(x) && pool.addTransaction(y);
+      pool.blockConnected(b, after);
+      passes = passes && pool.size() == 0;
+      passes = passes && !pool.addTransaction(late) && pool.size() == 0 && !pool.isKnownInvalid(late.getHash());
+      passes = passes && pool.addTransaction(spend(owner, output(y, 0), 7)) && pool.size() == 1;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test4() {
+      System.out.println("Threads adding at once settle every conflict one way and leave nothing waiting");
+
+      UTXOPool tip = new UTXOPool();
+      final ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int i = 0; i < 100; i++) {
+         Transaction parent = spend(owner, root(tip, i, 10, owner), 9);
+         txs.add(parent);
+         txs.add(spend(owner, output(parent, 0), 8 - 0.01 * i));
+         // a double spend of the parent's input, which only one may win
+         txs.add(spend(owner, new UTXO(parent.getInput(0).prevTxHash, 0), 8.5));
+      }
+
+      TransactionPool sequential = new TransactionPool();
+      sequential.setUTXOView(tip);
+      for (Transaction tx : txs)
+         sequential.addTransaction(tx);
+
+      final TransactionPool parallel = new TransactionPool();
+      parallel.setUTXOView(tip);
+      final AtomicInteger next = new AtomicInteger();
+      Thread[] threads = new Thread[4];
+      for (int t = 0; t < threads.length; t++) {
+         threads[t] = new Thread(new Runnable() {
+            public void run() {
+               for (int i = next.getAndIncrement(); i < txs.size(); i = next.getAndIncrement())
+                  parallel.addTransaction(txs.get(i));
+            }
+         });
+         threads[t].start();
+      }
+      boolean passes = true;
+      try {
+         for (Thread thread : threads)
+            thread.join();
+      } catch (InterruptedException e) {
+         passes = false;
+      }
+
+      // which side of each double spend wins depends on timing, but each
+      // root is spent exactly once, and a child is only left waiting if it
+      // came in before its parent and the parent then lost
+      passes = passes && sequential.size() == 200;
+      int rootsSpent = 0;
+      int parentsWon = 0;
+      for (int i = 0; i < 100; i++) {
+         Transaction parent = txs.get(3 * i);
+         byte[] spender = parallel.getSpender(parent.getInput(0).prevTxHash, 0);
+         if (spender != null && parallel.isValid(spender))
+            rootsSpent++;
+         boolean parentWon = parallel.isValid(parent.getHash());
+         if (parentWon)
+            parentsWon++;
+         passes = passes && parallel.isValid(txs.get(3 * i + 1).getHash()) == parentWon;
+      }
+      passes = passes && rootsSpent == 100;
+      int valid = 0;
+      for (Transaction tx : parallel.getTransactions())
+         if (parallel.isValid(tx.getHash()))
+            valid++;
+      passes = passes && valid == 100 + parentsWon && parallel.size() <= 200;
+      passes = passes && parallel.selectTransactions(tip, Long.MAX_VALUE).size() == valid;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test5() {
+      System.out.println("After a reorganization, pool transactions spending undone outputs wait until they return");
+
+      Block genesisBlock = genesis();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool pool = blockChain.getTransactionPool();
+
+      Transaction x = spend(owner, output(genesisBlock.getCoinbase(), 0), Block.COINBASE);
+      Transaction z = spend(owner, output(x, 0), Block.COINBASE - 1);
+      Transaction other = spend(owner, output(x, 0), Block.COINBASE - 2);
+      Block a1 = block(genesisBlock, 1, x);
+      boolean passes = blockChain.addBlock(a1);
+      passes = passes && pool.addTransaction(z) && pool.isValid(z.getHash());
+
+      // an empty branch overtakes a1, taking x and its output with it
+      Block b1 = block(genesisBlock, 2);
+      Block b2 = block(b1, 3);
+      passes = passes && blockChain.addBlock(b1) && blockChain.addBlock(b2);
+      passes = passes && blockChain.getMaxHeightBlock() == b2;
+      passes = passes && pool.getTransaction(z.getHash()) != null && !pool.isValid(z.getHash());
+      Block mined = blockHandler.createBlock(people.get(4).getPublicKey());
+      passes = passes && mined != null && mined.getTransactions().isEmpty();
+
+      // a1's branch comes back and z with it; a conflicting spend stays out
+      Block a2 = block(a1, 5);
+      Block a3 = block(a2, 6);
+      Block a4 = block(a3, 7);
+      passes = passes && blockChain.addBlock(a2) && blockChain.addBlock(a3) && blockChain.addBlock(a4);
+      passes = passes && blockChain.getMaxHeightBlock() == a4 && pool.isValid(z.getHash());
+      passes = passes && !pool.addTransaction(other);
+      Block next = blockHandler.createBlock(people.get(1).getPublicKey());
+      passes = passes && next != null && next.getTransactions().size() == 1 && next.getTransaction(0) == z;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test6() {
+      System.out.println("Replace-by-fee: only a replacement paying more than everything it displaces gets in");
+
+      UTXOPool tip = new UTXOPool();
+      UTXO root = root(tip, 0, 10, owner);
+      Transaction original = spend(owner, root, 9);
+      Transaction child = spend(owner, output(original, 0), 8.5);
+      Transaction cheap = spend(owner, root, 8.8);
+      Transaction better = spend(owner, root, 7);
+      Transaction fromChild = spend(owner, new UTXO[] { root, output(child, 0) }, new double[] { 1 }, owner.getPublicKey());
+
+      TransactionPool pool = new TransactionPool();
+      pool.setUTXOView(tip);
+      boolean passes = pool.addTransaction(original) && pool.addTransaction(child);
+      passes = passes && !pool.addTransaction(better) && pool.size() == 2;
+
+      pool.setReplaceByFee(true);
+      // a higher fee rate than original, but less fee than original and child together
+      passes = passes && !pool.addTransaction(cheap);
+      // spends what it would evict
+      passes = passes && !pool.addTransaction(fromChild);
+      passes = passes && pool.size() == 2 && pool.isValid(child.getHash());
+      passes = passes && pool.addTransaction(better) && pool.size() == 1;
+      passes = passes && pool.getTransaction(original.getHash()) == null && pool.getTransaction(child.getHash()) == null;
+      passes = passes && Arrays.equals(pool.getSpender(root.getTxHash(), 0), better.getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test7() {
+      System.out.println("Over its size bound the pool evicts by descendant score, and old transactions expire");
+
+      UTXOPool tip = new UTXOPool();
+      Transaction a = spend(owner, root(tip, 0, 10, owner), 9);
+      Transaction b = spend(owner, root(tip, 1, 10, owner), 7);
+      Transaction c = spend(owner, root(tip, 2, 10, owner), 8);
+      Transaction parent = spend(owner, root(tip, 3, 10, owner), 9.5);
+      Transaction child = spend(owner, output(parent, 0), 0.5);
+      Transaction d = spend(owner, root(tip, 4, 10, owner), 6);
+      long maxBytes = 2;
+      for (Transaction tx : new Transaction[] { b, c, parent, child })
+         maxBytes += BlockCodec.encode(tx).length;
+
+      TransactionPool pool = new TransactionPool(maxBytes, Long.MAX_VALUE);
+      pool.setUTXOView(tip);
+      boolean passes = true;
+      for (Transaction tx : new Transaction[] { a, b, c, parent, child })
+         pool.addTransaction(tx);
+      passes = passes && pool.getTransaction(a.getHash()) == null && pool.size() == 4;
+      // the parent pays least on its own, but its child carries it
+      passes = passes && pool.addTransaction(d) && pool.getTransaction(c.getHash()) == null;
+      passes = passes && pool.isValid(parent.getHash()) && pool.isValid(child.getHash());
+      passes = passes && pool.getBytes() <= maxBytes;
+
+      TransactionPool aging = new TransactionPool(TransactionPool.DEFAULT_MAX_BYTES, 50);
+      aging.setUTXOView(tip);
+      aging.addTransaction(parent);
+      aging.addTransaction(child);
+      try {
+         Thread.sleep(100);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      passes = passes && aging.addTransaction(a) && aging.size() == 1 && aging.getBytes() == BlockCodec.encode(a).length;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test8() {
+      System.out.println("Selection takes a low-fee parent for its child's fee, and packages stay bounded and exact");
+
+      UTXOPool tip = new UTXOPool();
+      Transaction parent = spend(owner, root(tip, 0, 10, owner), 9.9);
+      Transaction child = spend(owner, output(parent, 0), 3.9);
+      Transaction middle = spend(owner, root(tip, 1, 10, owner), 8);
+      TransactionPool pool = new TransactionPool();
+      pool.setUTXOView(tip);
+      boolean passes = pool.addTransaction(middle) && pool.addTransaction(parent) && pool.addTransaction(child);
+      long room = pool.getSize(parent.getHash()) + pool.getSize(child.getHash()) + 1;
+      ArrayList<Transaction> selected = pool.selectTransactions(tip, room);
+      passes = passes && selected.size() == 2 && selected.get(0) == parent && selected.get(1) == child;
+
+      // once the parent is confirmed, the child's package is the child alone
+      UTXOPool confirmed = new UTXOPool(tip);
+      confirmed.removeUTXO(new UTXO(parent.getInput(0).prevTxHash, 0));
+      confirmed.addUTXO(output(parent, 0), parent.getOutput(0));
+      pool.removeTransaction(parent.getHash());
+      selected = pool.selectTransactions(confirmed, pool.getSize(child.getHash()));
+      passes = passes && selected.size() == 1 && selected.get(0) == child;
+
+      TransactionPool chain = new TransactionPool();
+      chain.setUTXOView(tip);
+      Transaction link = spend(owner, root(tip, 2, 10, owner), 9.9);
+      for (int i = 1; i < TransactionPool.MAX_PACKAGE_TXS && passes; i++) {
+         passes = chain.addTransaction(link) && chain.isValid(link.getHash());
+         link = spend(owner, output(link, 0), 9.9 - 0.1 * i);
+      }
+      passes = passes && chain.addTransaction(link) && chain.size() == TransactionPool.MAX_PACKAGE_TXS;
+      passes = passes && !chain.addTransaction(spend(owner, output(link, 0), 1)) && chain.size() == TransactionPool.MAX_PACKAGE_TXS;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestTransactionPool tester = new TestTransactionPool();
+
+      int total = 0;
+      int numTests = 8;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+      total += tester.test4();
+      total += tester.test5();
+      total += tester.test6();
+      total += tester.test7();
+      total += tester.test8();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
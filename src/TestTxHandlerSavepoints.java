@@ -0,0 +1,112 @@
+// Driver class for the savepoint, rollbackTo and commit session of TxHandler
+public class TestTxHandlerSavepoints extends TestFixtures {
+
+   public RSAKeyPair owner;
+   public UTXOPool rootPool;
+   public UTXO root;
+
+   public TestTxHandlerSavepoints() {
+      super(4, 1);
+      owner = person(0);
+      rootPool = new UTXOPool();
+      root = root(rootPool, 0, 10, owner);
+   }
+
+   public static boolean rejects(TxHandler handler, int savepoint) {
+      try {
+         handler.rollbackTo(savepoint);
+         return false;
+      } catch (IllegalArgumentException e) {
+         return true;
+      }
+   }
+
+   public int test1() {
+      System.out.println("Nested savepoints each roll the pool back to the state they marked");
+
+      TxHandler handler = new TxHandler(rootPool);
+      Transaction a = spend(owner, root, 9);
+      Transaction b = spend(owner, output(a, 0), 8);
+      Transaction c = spend(owner, output(b, 0), 7);
+
+      boolean passes = handler.tryApply(a);
+      UTXOPool afterA = new UTXOPool(handler.getUTXOPool());
+      int s1 = handler.savepoint();
+      passes = passes && handler.tryApply(b);
+      UTXOPool afterB = new UTXOPool(handler.getUTXOPool());
+      int s2 = handler.savepoint();
+      passes = passes && handler.tryApply(c);
+
+      handler.rollbackTo(s2);
+      passes = passes && samePool(handler.getUTXOPool(), afterB);
+      handler.rollbackTo(s2);
+      passes = passes && samePool(handler.getUTXOPool(), afterB);
+      handler.rollbackTo(s1);
+      passes = passes && samePool(handler.getUTXOPool(), afterA);
+      passes = passes && handler.tryApply(b) && handler.tryApply(c);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("A savepoint taken after the one rolled back to is closed, even once new changes are made");
+
+      TxHandler handler = new TxHandler(rootPool);
+      Transaction a = spend(owner, root, 9);
+      Transaction b = spend(owner, output(a, 0), 8);
+      Transaction other = spend(owner, root, 5);
+
+      int s1 = handler.savepoint();
+      boolean passes = handler.tryApply(a);
+      int s2 = handler.savepoint();
+      passes = passes && handler.tryApply(b);
+      handler.rollbackTo(s1);
+      passes = passes && handler.tryApply(other);
+      UTXOPool afterOther = new UTXOPool(handler.getUTXOPool());
+
+      passes = passes && rejects(handler, s2);
+      passes = passes && samePool(handler.getUTXOPool(), afterOther);
+      passes = passes && rejects(handler, -1) && rejects(handler, s2 + 100);
+      handler.rollbackTo(s1);
+      passes = passes && samePool(handler.getUTXOPool(), rootPool);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("commit keeps the changes and closes every savepoint");
+
+      TxHandler handler = new TxHandler(rootPool);
+      Transaction a = spend(owner, root, 9);
+
+      int s1 = handler.savepoint();
+      boolean passes = handler.tryApply(a);
+      UTXOPool afterA = new UTXOPool(handler.getUTXOPool());
+      handler.commit();
+      passes = passes && samePool(handler.getUTXOPool(), afterA);
+      passes = passes && rejects(handler, s1);
+
+      int s2 = handler.savepoint();
+      passes = passes && s2 != s1;
+      passes = passes && handler.tryApply(spend(owner, output(a, 0), 8));
+      handler.rollbackTo(s2);
+      passes = passes && samePool(handler.getUTXOPool(), afterA);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestTxHandlerSavepoints tester = new TestTxHandlerSavepoints();
+
+      int total = 0;
+      int numTests = 3;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
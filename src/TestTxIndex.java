@@ -0,0 +1,186 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+// Driver class for TxIndex, on its own and kept in step by a BlockChain
+public class TestTxIndex extends TestFixtures {
+
+   public TestTxIndex() {
+      super(8, 8);
+   }
+
+   public static boolean at(TxIndex txIndex, Transaction tx, Block b, int position) {
+      TxIndex.Location location = txIndex.get(tx.getHash());
+      return location != null && Arrays.equals(location.getBlockHash(), b.getHash()) && location.getPosition() == position;
+   }
+
+   public int test1() {
+      System.out.println("The index follows the best chain across reorganizations both ways");
+
+      Block genesisBlock = genesis();
+      TxIndex txIndex = new TxIndex();
+      BlockChain blockChain = new BlockChain(genesisBlock, null, txIndex);
+
+      Transaction x = spend(people.get(0), output(genesisBlock.getCoinbase(), 0), Block.COINBASE);
+      Transaction y = spend(people.get(0), output(x, 0), Block.COINBASE - 1);
+      Block a1 = block(genesisBlock, 1, x);
+      Block b1 = block(genesisBlock, 2, x, y);
+      Block b2 = block(b1, 3);
+
+      boolean passes = blockChain.addBlock(a1) && at(txIndex, x, a1, 0);
+      passes = passes && blockChain.addBlock(b1) && at(txIndex, x, a1, 0) && txIndex.get(y.getHash()) == null;
+      passes = passes && blockChain.addBlock(b2) && at(txIndex, x, b1, 0) && at(txIndex, y, b1, 1);
+      passes = passes && txIndex.size() == 2;
+
+      Block a2 = block(a1, 4);
+      Block a3 = block(a2, 5);
+      passes = passes && blockChain.addBlock(a2) && blockChain.addBlock(a3);
+      passes = passes && at(txIndex, x, a1, 0) && txIndex.get(y.getHash()) == null && txIndex.size() == 1;
+      passes = passes && txIndex.get(genesisBlock.getCoinbase().getHash()) == null;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("An index rebuilt from a reopened block store matches the one the chain kept");
+
+      boolean passes = true;
+      File dir = null;
+      try {
+         dir = tempDir("txindex");
+         Block genesisBlock = genesis();
+         BlockStore store = new BlockStore(dir);
+         TxIndex txIndex = new TxIndex();
+         BlockChain blockChain = new BlockChain(genesisBlock, store, txIndex);
+
+         ArrayList<Transaction> txs = new ArrayList<Transaction>();
+         Block parent = genesisBlock;
+         for (int i = 1; i < 6; i++) {
+            Transaction tx = spend(people.get(i - 1), output(parent.getCoinbase(), 0), Block.COINBASE);
+            Block b = block(parent, i, tx);
+            passes = passes && blockChain.addBlock(b);
+            txs.add(tx);
+            parent = b;
+         }
+         store.close();
+
+         BlockStore reopened = new BlockStore(dir);
+         TxIndex rebuilt = new TxIndex();
+         for (Block b : reopened.getBlocks(parent.getHash(), 1, reopened.getHeight(parent.getHash())))
+            rebuilt.addBlock(b);
+         passes = passes && rebuilt.size() == txIndex.size() && rebuilt.size() == txs.size();
+         for (Transaction tx : txs) {
+            TxIndex.Location kept = txIndex.get(tx.getHash());
+            TxIndex.Location found = rebuilt.get(tx.getHash());
+            passes = passes && kept != null && found != null && Arrays.equals(kept.getBlockHash(), found.getBlockHash())
+                  && kept.getPosition() == found.getPosition();
+         }
+         reopened.close();
+      } catch (IOException e) {
+         e.printStackTrace(System.err);
+         passes = false;
+      } finally {
+         delete(dir);
+      }
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("Heavy churn through tombstones and rebuilds loses no live entry");
+
+      Random random = new Random(42);
+      TxIndex txIndex = new TxIndex();
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      byte[] prevHash = new byte[32];
+      for (int i = 0; i < 300; i++) {
+         Block b = new Block(prevHash, people.get(0).getPublicKey());
+         for (int j = 0; j < 10; j++) {
+            Transaction tx = new Transaction();
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            tx.setHash(hash);
+            b.addTransaction(tx);
+         }
+         byte[] hash = new byte[32];
+         random.nextBytes(hash);
+         b.setHash(hash);
+         blocks.add(b);
+         prevHash = hash;
+         txIndex.addBlock(b);
+         // drop every other block once the next one is in, leaving tombstones
+         if (i % 2 == 1)
+            txIndex.removeBlock(blocks.get(i - 1));
+      }
+
+      boolean passes = txIndex.size() == 150 * 10;
+      for (int i = 0; i < blocks.size(); i++) {
+         Block b = blocks.get(i);
+         for (int j = 0; j < b.getTransactions().size(); j++) {
+            Transaction tx = b.getTransaction(j);
+            passes = passes && (i % 2 == 0 ? txIndex.get(tx.getHash()) == null : at(txIndex, tx, b, j));
+         }
+      }
+      // removing a block that no longer owns its entries changes nothing
+      txIndex.removeBlock(blocks.get(0));
+      passes = passes && txIndex.size() == 150 * 10;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test4() {
+      System.out.println("A reorganization whose fork point was pruned connects the whole new branch");
+
+      Block genesisBlock = genesis();
+      TxIndex txIndex = new TxIndex();
+      BlockChain blockChain = new BlockChain(genesisBlock, null, txIndex);
+
+      Block a2 = block(genesisBlock, 1);
+      Block a3 = block(a2, 3);
+      Transaction x = spend(people.get(0), output(genesisBlock.getCoinbase(), 0), Block.COINBASE);
+      Block b3 = block(a2, 2, x);
+      boolean passes = blockChain.addBlock(a2) && blockChain.addBlock(a3) && blockChain.addBlock(b3);
+      // x is unconfirmed on the main branch, so it is relayed into the pool
+      blockChain.addTransaction(x);
+      passes = passes && blockChain.getTransactionPool().getTransaction(x.getHash()) != null;
+
+      // grow the main branch until a2, where the branches meet, is pruned
+      Block parent = a3;
+      for (int height = 4; height <= BlockChain.CUT_OFF_AGE + 3; height++) {
+         parent = block(parent, 3);
+         passes = passes && blockChain.addBlock(parent);
+      }
+      passes = passes && blockChain.getBlockHeight(a2.getHash()) == -1 && blockChain.getBlockHeight(b3.getHash()) == 3;
+      passes = passes && txIndex.get(x.getHash()) == null;
+
+      // then let the other branch overtake it
+      Block tip = b3;
+      for (int height = 4; height <= BlockChain.CUT_OFF_AGE + 4; height++) {
+         tip = block(tip, 4);
+         passes = passes && blockChain.addBlock(tip);
+      }
+      passes = passes && blockChain.getMaxHeightBlock() == tip;
+      passes = passes && at(txIndex, x, b3, 0) && txIndex.size() == 1;
+      passes = passes && blockChain.getTransactionPool().getTransaction(x.getHash()) == null;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestTxIndex tester = new TestTxIndex();
+
+      int total = 0;
+      int numTests = 4;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += tester.test1();
+      total += tester.test2();
+      total += tester.test3();
+      total += tester.test4();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
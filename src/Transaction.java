@@ -237,12 +237,22 @@ public class Transaction {
    }
 
    public void finalize() {
+      hash = computeHash();
+   }
+
+   // returns true if the stored hash is the hash of the transaction's contents
+   public boolean hasValidHash() {
+      return hash != null && Arrays.equals(hash, computeHash());
+   }
+
+   private byte[] computeHash() {
       try {
          MessageDigest md = MessageDigest.getInstance("SHA-256");
          md.update(getRawTx());
-         hash = md.digest();
+         return md.digest();
       } catch(NoSuchAlgorithmException x) {
          x.printStackTrace(System.err);
+         return null;
       }
    }
 
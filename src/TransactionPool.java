@@ -1,37 +1,927 @@
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
+/* Pending transactions, each with its fee (inputs minus outputs) and fee
+ * rate (fee per encoded byte), kept in a fee-rate index so the best paying
+ * transactions can be taken in order without sorting the pool.
+ *
+ * A transaction spending another pool transaction can only be mined with
+ * it, so each valid transaction also carries the total size and fee of its
+ * package of ancestors in the pool, and of its descendants. The totals are
+ * updated as transactions come and go, touching only the relatives of the
+ * one that changed; to keep that cheap, no package may hold more than
+ * MAX_PACKAGE_TXS transactions. Blocks are filled by ancestor package fee
+ * rate, so a child paying a high fee pulls in its low-fee parent, and
+ * eviction goes by the better of a transaction's own fee rate and that of
+ * its descendant package, so such a parent is not the first to go.
+ *
+ * Transactions are validated on admission against the UTXO pool of the
+ * chain tip layered with the outputs of the other pool transactions: a
+ * transaction spending an output some valid pool transaction already spends
+ * is refused, unless replace-by-fee is on and it pays strictly more than
+ * everything it would displace, and one failing any other check is dropped,
+ * remembered as invalid if it can never pass. A transaction spending an
+ * output neither holds cannot be checked yet; it waits, outside the fee-rate
+ * index, until its parent arrives or the tip changes. One spending an output
+ * of a transaction confirmed in a recent block that the tip no longer holds
+ * is a spend of a spent output, and is dropped instead. Hashes of
+ * transactions that passed are cached, so checking them again skips their
+ * signatures.
+ *
+ * The pool is bounded. Once the encoded size of its transactions passes
+ * maxBytes, waiting transactions are evicted first, oldest first, and then
+ * the lowest fee rate transaction together with its descendants in the
+ * pool; no more than MAX_WAITING_TXS may wait at once. Transactions older
+ * than maxAgeMillis expire the same way.
+ *
+ * Many threads may add transactions at once, through parallel
+ * preverification and a serialized commit. Lookups by hash never lock, and
+ * the costly part of admission, checking a transaction's syntax and
+ * signatures, runs on the calling thread before it takes the pool's lock.
+ * The commit that follows, linking the checked transaction into the
+ * indexes, finding its conflicts, replacing and evicting, runs under that
+ * one lock by design: those steps read and change several ordered indexes
+ * that must agree with each other, and with signatures already checked
+ * they are short. Block selection holds the same lock while it walks the
+ * index, so it sees the pool as of one moment.
+ */
 public class TransactionPool {
 
-   private HashMap<ByteArrayWrapper, Transaction> H;
+   // number of known-invalid transaction hashes remembered
+   public static final int MAX_INVALID_TXS = 10000;
+   // number of hashes of transactions whose signatures passed remembered
+   public static final int MAX_VERIFIED_TXS = 100000;
+   // most pool transactions one replacement may evict
+   public static final int MAX_REPLACED_TXS = 100;
+   // packages in a row that may fail to fit before selection gives up
+   public static final int MAX_SKIPPED = 1000;
+   // most transactions a valid transaction and its pool ancestors, or it
+   // and its pool descendants, may number
+   public static final int MAX_PACKAGE_TXS = 25;
+   // most transactions that may wait for an output at once
+   public static final int MAX_WAITING_TXS = 1000;
+   // number of hashes of transactions in recently connected blocks remembered
+   public static final int MAX_CONFIRMED_TXS = 100000;
+   public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+   public static final long DEFAULT_MAX_AGE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
+   private long maxBytes;
+   private long maxAgeMillis;
+   // by transaction hash, read without locking
+   private ConcurrentHashMap<ByteArrayWrapper, Entry> H;
+   // by arrival, oldest first
+   private TreeMap<Long, Entry> byArrival;
+   // valid entries, best fee rate (or descendant package fee rate, if
+   // higher) first
+   private TreeSet<Entry> byFeeRate;
+   // entries waiting for an output, by arrival, oldest first
+   private TreeMap<Long, Entry> waiting;
+   // valid entries, best ancestor package fee rate first
+   private TreeSet<Entry> byAncestorFeeRate;
+   // entries spending an output of the transaction with the given hash,
+   // whether or not that transaction is in the pool
+   private HashMap<ByteArrayWrapper, ArrayList<Entry>> spenders;
+   // the valid entry spending each output, for finding conflicts
+   private HashMap<UTXO, Entry> spentBy;
+   private volatile boolean replaceByFee;
+   // UTXO pool at the chain tip; never changed once set
+   private volatile UTXOPool view;
+   private volatile long bytes;
+   private long arrivals;
+   // hashes of transactions that can never be valid, of transactions that
+   // passed validation once, and of transactions in recently connected
+   // blocks, least recently seen first
+   private Map<ByteArrayWrapper, Boolean> invalid;
+   private Map<ByteArrayWrapper, Boolean> verified;
+   private Map<ByteArrayWrapper, Boolean> confirmed;
+
+   // a pool transaction with its encoded size, its links to the pool
+   // transactions it spends and that spend it, and, once valid, its fee and
+   // its package totals
+   private static class Entry {
+      public Transaction tx;
+      public ByteArrayWrapper hash;
+      public int size;
+      // written under the pool's lock, fee before valid, and read without it
+      public volatile double fee;
+      public volatile boolean valid;
+      public long time;
+      // arrival order, the tiebreak between equal fee rates
+      public long seq;
+      public ArrayList<Entry> parents = new ArrayList<Entry>();
+      public ArrayList<Entry> children = new ArrayList<Entry>();
+      // over this entry and its valid ancestors, and this entry and its
+      // valid descendants, in the pool
+      public int ancestorCount, descendantCount;
+      public long ancestorSize, descendantSize;
+      public double ancestorFee, descendantFee;
+      // the CompactBlock short id under the last salt asked for, if any
+      public boolean hasShortId;
+      public long shortIdSalt, shortId;
+
+      public Entry(Transaction tx, ByteArrayWrapper hash, int size, long time, long seq) {
+         this.tx = tx;
+         this.hash = hash;
+         this.size = size;
+         this.time = time;
+         this.seq = seq;
+      }
+
+      public double getFeeRate() {
+         return valid ? fee / size : 0;
+      }
+
+      public double getAncestorFeeRate() {
+         return ancestorFee / ancestorSize;
+      }
+
+      // what evicting this entry with its descendants would give up, per byte
+      public double getDescendantScore() {
+         return valid ? Math.max(fee / size, descendantFee / descendantSize) : 0;
+      }
+   }
+
+   // an entry with the size and fee of the part of its ancestor package a
+   // block being assembled still lacks
+   private static class Package {
+      public Entry entry;
+      public long size;
+      public double fee;
+
+      public Package(Entry entry, long size, double fee) {
+         this.entry = entry;
+         this.size = size;
+         this.fee = fee;
+      }
+   }
 
    public TransactionPool() {
-      H = new HashMap<ByteArrayWrapper, Transaction>();
+      this(DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS);
+   }
+
+   public TransactionPool(long maxBytes, long maxAgeMillis) {
+      this.maxBytes = maxBytes;
+      this.maxAgeMillis = maxAgeMillis;
+      H = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+      byArrival = new TreeMap<Long, Entry>();
+      byFeeRate = newFeeRateIndex();
+      waiting = new TreeMap<Long, Entry>();
+      byAncestorFeeRate = newAncestorFeeRateIndex();
+      spenders = new HashMap<ByteArrayWrapper, ArrayList<Entry>>();
+      spentBy = new HashMap<UTXO, Entry>();
+      view = new UTXOPool();
+      invalid = newCache(MAX_INVALID_TXS);
+      verified = newCache(MAX_VERIFIED_TXS);
+      confirmed = newCache(MAX_CONFIRMED_TXS);
    }
 
    public TransactionPool(TransactionPool txPool) {
-      H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+      this(txPool.maxBytes, txPool.maxAgeMillis);
+      view = txPool.view;
+      replaceByFee = txPool.replaceByFee;
+      synchronized (txPool) {
+         arrivals = txPool.arrivals;
+         invalid.putAll(txPool.invalid);
+         verified.putAll(txPool.verified);
+         confirmed.putAll(txPool.confirmed);
+         for (Entry e : txPool.byArrival.values())
+            insert(new Entry(e.tx, e.hash, e.size, e.time, e.seq));
+      }
    }
 
-   public void addTransaction(Transaction tx) {
+   /* Admit tx if it is valid on top of the tip and the rest of the pool, or
+    * hold it if an output it spends is not known yet. Returns whether tx is
+    * in the pool afterwards; transactions known to be invalid are ignored.
+    * Safe to call from many threads at once.
+    */
+   public boolean addTransaction(Transaction tx) {
+      if (tx == null || tx.getHash() == null)
+         return false;
       ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-      H.put(hash, tx);
+      if (invalid.containsKey(hash))
+         return false;
+      if (H.containsKey(hash))
+         return true;
+      if (TxHandler.checkSyntax(tx) != ValidationResult.VALID || !tx.hasValidHash()) {
+         if (tx.hasValidHash())
+            invalid.put(hash, Boolean.TRUE);
+         return false;
+      }
+      if (!preverify(tx, hash))
+         return false;
+      int size = BlockCodec.encode(tx).length;
+
+      synchronized (this) {
+         if (H.containsKey(hash))
+            return true;
+         long now = System.currentTimeMillis();
+         expire(now);
+         Entry e = new Entry(tx, hash, size, now, arrivals++);
+         insert(e);
+         while (waiting.size() > MAX_WAITING_TXS)
+            removeWithDescendants(waiting.firstEntry().getValue());
+         while (bytes > maxBytes && !(waiting.isEmpty() && byFeeRate.isEmpty()))
+            removeWithDescendants(waiting.isEmpty() ? byFeeRate.last() : waiting.firstEntry().getValue());
+         return H.get(hash) == e;
+      }
+   }
+
+   /* Check tx against the outputs it spends, as far as they can be found
+    * without the lock, so the signatures are verified outside it. Outputs
+    * never change, so a pass is cached for admit and a failure other than a
+    * missing output is final. Returns false if tx can never be valid, or
+    * spends an output the tip has already spent.
+    */
+   private boolean preverify(Transaction tx, ByteArrayWrapper hash) {
+      if (verified.containsKey(hash))
+         return true;
+      UTXOPool tipView = view;
+      UTXOPool spent = new UTXOPool();
+      for (Transaction.Input in : tx.getInputs()) {
+         if (in.prevTxHash == null)
+            return false;
+         UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+         Transaction.Output output = tipView.getTxOutput(utxo);
+         if (output == null) {
+            ByteArrayWrapper prev = new ByteArrayWrapper(in.prevTxHash);
+            Entry parent = H.get(prev);
+            if (parent == null && confirmed.containsKey(prev))
+               return false;
+            if (parent == null || in.outputIndex < 0 || in.outputIndex >= parent.tx.numOutputs())
+               return true;
+            output = parent.tx.getOutput(in.outputIndex);
+         }
+         spent.addUTXO(utxo, output);
+      }
+      ValidationResult result = new TxHandler(spent).validate(tx);
+      if (result == ValidationResult.VALID) {
+         verified.put(hash, Boolean.TRUE);
+         return true;
+      }
+      if (result.isPermanent()) {
+         invalid.put(hash, Boolean.TRUE);
+         return false;
+      }
+      return true;
+   }
+
+   /* Turn replace-by-fee on or off. When on, a transaction spending an
+    * output a pool transaction already spends replaces it if it pays a
+    * higher fee rate than each transaction it conflicts with and a higher
+    * fee than those and all their descendants together, and would evict no
+    * more than MAX_REPLACED_TXS transactions.
+    */
+   public void setReplaceByFee(boolean enabled) {
+      replaceByFee = enabled;
    }
 
-   public void removeTransaction(byte[] txHash) {
+   /* Get the hash of the valid pool transaction spending output index of
+    * the transaction with hash txHash, or null if none does
+    */
+   public synchronized byte[] getSpender(byte[] txHash, int index) {
+      Entry e = spentBy.get(new UTXO(txHash, index));
+      return e == null ? null : e.tx.getHash();
+   }
+
+   /* Whether the transaction with this hash is in the pool and has been
+    * validated, rather than waiting for an output it spends
+    */
+   public boolean isValid(byte[] txHash) {
+      Entry e = H.get(new ByteArrayWrapper(txHash));
+      return e != null && e.valid;
+   }
+
+   /* Set the UTXO pool of the new chain tip. Transactions still waiting
+    * for an output are tried again.
+    */
+   public synchronized void setUTXOView(UTXOPool tipPool) {
+      view = tipPool;
+      expire(System.currentTimeMillis());
+      retryAllWaiting();
+   }
+
+   /* Update the pool for b, just connected on top of the old tip, with
+    * tipPool the UTXO pool on top of b. b's transactions leave the pool,
+    * what spends them stays; pool transactions spending an output b spent
+    * are found through the conflict index and evicted with their
+    * descendants; spenders of b's outputs that were waiting are checked.
+    * Nothing else in the pool is looked at, so this costs O(size of b).
+    */
+   public synchronized void blockConnected(Block b, UTXOPool tipPool) {
+      view = tipPool;
+      expire(System.currentTimeMillis());
+      removeConfirmed(b);
+      markConfirmed(b);
+      retryWaiting(b.getCoinbase().getHash());
+      for (Transaction tx : b.getTransactions())
+         retryWaiting(tx.getHash());
+   }
+
+   // remove b's transactions, as for a block that went onto a side branch
+   public synchronized void removeTransactions(Block b) {
+      for (Transaction tx : b.getTransactions()) {
+         Entry e = H.get(new ByteArrayWrapper(tx.getHash()));
+         if (e != null)
+            remove(e);
+      }
+   }
+
+   /* Update the pool after the best chain switched branches, disconnected
+    * holding the blocks undone down to the fork and connected those now on
+    * the best chain above it, oldest first. The connected blocks'
+    * transactions leave the pool along with their conflicts. Pool
+    * transactions spending outputs of the undone blocks are checked again,
+    * with their descendants, since the new tip may not hold those outputs;
+    * then everything still waiting is tried against the new tip.
+    * Transactions of the undone blocks are not brought back: like those of
+    * side-branch blocks, they left the pool when their block was accepted.
+    */
+   public synchronized void reorganize(List<Block> disconnected, List<Block> connected, UTXOPool tipPool) {
+      view = tipPool;
+      expire(System.currentTimeMillis());
+      for (Block b : disconnected)
+         for (Transaction tx : b.getTransactions())
+            if (tx.getHash() != null)
+               confirmed.remove(new ByteArrayWrapper(tx.getHash()));
+      for (Block b : connected) {
+         removeConfirmed(b);
+         markConfirmed(b);
+      }
+      for (Block b : disconnected)
+         revalidateSpenders(b);
+      retryAllWaiting();
+   }
+
+   /* Take the valid pool transactions spending an output of b, and their
+    * descendants, out of the pool and insert them again in arrival order,
+    * so each is admitted, left waiting or dropped against the current view
+    */
+   private void revalidateSpenders(Block b) {
+      ArrayList<Entry> roots = new ArrayList<Entry>();
+      ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+      hashes.add(b.getCoinbase().getHash());
+      for (Transaction tx : b.getTransactions())
+         hashes.add(tx.getHash());
+      for (byte[] hash : hashes) {
+         ArrayList<Entry> list = hash == null ? null : spenders.get(new ByteArrayWrapper(hash));
+         if (list != null)
+            for (Entry e : list)
+               if (e.valid && H.get(e.hash) == e)
+                  roots.add(e);
+      }
+      if (roots.isEmpty())
+         return;
+
+      TreeMap<Long, Entry> affected = new TreeMap<Long, Entry>();
+      for (Entry e : roots) {
+         affected.put(e.seq, e);
+         for (Entry d : relatives(e, false))
+            affected.put(d.seq, d);
+      }
+      for (Entry e : affected.values())
+         remove(e);
+      for (Entry e : affected.values())
+         if (!H.containsKey(e.hash))
+            insert(new Entry(e.tx, e.hash, e.size, e.time, e.seq));
+   }
+
+   // drop b's transactions, keeping what spends them, and evict what
+   // conflicts with them
+   private void removeConfirmed(Block b) {
+      for (Transaction tx : b.getTransactions()) {
+         Entry e = H.get(new ByteArrayWrapper(tx.getHash()));
+         if (e != null)
+            remove(e);
+         for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null)
+               continue;
+            Entry conflict = spentBy.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (conflict != null)
+               removeWithDescendants(conflict);
+         }
+      }
+   }
+
+   /* Remember b's transactions as confirmed, so that spends of their outputs
+    * the tip no longer holds are dropped rather than left waiting. Coinbases
+    * are left out: a coinbase's hash depends only on the address it pays,
+    * so a later block can bring the same output back.
+    */
+   private void markConfirmed(Block b) {
+      for (Transaction tx : b.getTransactions())
+         if (tx.getHash() != null)
+            confirmed.put(new ByteArrayWrapper(tx.getHash()), Boolean.TRUE);
+   }
+
+   // check the waiting spenders of the transaction with this hash
+   private void retryWaiting(byte[] txHash) {
+      ArrayList<Entry> list = spenders.get(new ByteArrayWrapper(txHash));
+      if (list == null)
+         return;
+      for (Entry e : new ArrayList<Entry>(list))
+         if (!e.valid && H.get(e.hash) == e)
+            admit(e);
+   }
+
+   private void retryAllWaiting() {
+      for (Entry e : new ArrayList<Entry>(waiting.values()))
+         if (!e.valid && H.get(e.hash) == e)
+            admit(e);
+   }
+
+   // remember that the transaction with this hash can never be valid, and
+   // drop it from the pool
+   public synchronized void markInvalid(byte[] txHash) {
       ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-      H.remove(hash);
+      invalid.put(hash, Boolean.TRUE);
+      removeTransaction(txHash);
+   }
+
+   public boolean isKnownInvalid(byte[] txHash) {
+      return invalid.containsKey(new ByteArrayWrapper(txHash));
+   }
+
+   // remove just this transaction; what spends it stays, as it does when
+   // the transaction is confirmed
+   public synchronized void removeTransaction(byte[] txHash) {
+      Entry e = H.get(new ByteArrayWrapper(txHash));
+      if (e != null)
+         remove(e);
    }
 
    public Transaction getTransaction(byte[] txHash) {
       ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-      return H.get(hash);
+      Entry e = H.get(hash);
+      return e == null ? null : e.tx;
    }
 
-   public ArrayList<Transaction> getTransactions() {
+   public synchronized ArrayList<Transaction> getTransactions() {
       ArrayList<Transaction> T = new ArrayList<Transaction>();
-      for (Transaction tx : H.values())
-         T.add(tx);
+      for (Entry e : byArrival.values())
+         T.add(e.tx);
       return T;
    }
+
+   /* The pool's transactions by their CompactBlock short ids under salt, 
+    * leaving out ids that two of them share. Each entry keeps its id for 
+    * the last salt asked for, so relays of a block, which share its salt, 
+    * hash each pool transaction once.
+    */
+   public synchronized HashMap<Long, Transaction> getByShortId(long salt) {
+      HashMap<Long, Transaction> byId = new HashMap<Long, Transaction>();
+      HashSet<Long> ambiguous = new HashSet<Long>();
+      for (Entry e : byArrival.values()) {
+         if (!e.hasShortId || e.shortIdSalt != salt) {
+            e.shortId = CompactBlock.shortId(salt, e.tx.getHash());
+            e.shortIdSalt = salt;
+            e.hasShortId = true;
+         }
+         if (byId.put(e.shortId, e.tx) != null)
+            ambiguous.add(e.shortId);
+      }
+      for (Long id : ambiguous)
+         byId.remove(id);
+      return byId;
+   }
+
+   public int size() {
+      return H.size();
+   }
+
+   // encoded size of all the pool's transactions
+   public long getBytes() {
+      return bytes;
+   }
+
+   /* Get the fee of the transaction with this hash, or NaN if it is not in
+    * the pool or has not been validated yet
+    */
+   public double getFee(byte[] txHash) {
+      Entry e = H.get(new ByteArrayWrapper(txHash));
+      return e == null || !e.valid ? Double.NaN : e.fee;
+   }
+
+   /* Get the encoded size in bytes of the transaction with this hash, or -1
+    * if it is not in the pool
+    */
+   public int getSize(byte[] txHash) {
+      Entry e = H.get(new ByteArrayWrapper(txHash));
+      return e == null ? -1 : e.size;
+   }
+
+   /* Choose transactions for a block on top of tipPool, of at most
+    * maxBytes encoded bytes in all, by ancestor package fee rate: each step
+    * takes the transaction whose package of not yet chosen pool ancestors
+    * pays the best fee rate, together with that package, parents first. As
+    * transactions are taken, the packages of their descendants shrink and
+    * are ranked again. Only transactions already validated are considered,
+    * and their signatures are not checked again; each is applied to a
+    * TxHandler over tipPool, so the result is still mutually valid and in an
+    * order a block can hold. Walks only as far down the index as it needs to.
+    */
+   public synchronized ArrayList<Transaction> selectTransactions(UTXOPool tipPool, long maxBytes) {
+      TxHandler handler = new TxHandler(tipPool);
+      handler.setVerifySignatures(false);
+      ArrayList<Transaction> selected = new ArrayList<Transaction>();
+      HashSet<Entry> taken = new HashSet<Entry>();
+      HashSet<Entry> dropped = new HashSet<Entry>();
+      // entries with some ancestors taken, ranked by what is left of their
+      // package
+      HashMap<Entry, Package> modified = new HashMap<Entry, Package>();
+      TreeSet<Package> byModifiedFeeRate = newPackageIndex();
+      Iterator<Entry> it = byAncestorFeeRate.iterator();
+      Package fromIndex = null;
+      long bytes = 0;
+      int skipped = 0;
+      while (skipped < MAX_SKIPPED) {
+         // the next entry of the index whose package is still whole
+         while (fromIndex == null || taken.contains(fromIndex.entry)
+               || dropped.contains(fromIndex.entry) || modified.containsKey(fromIndex.entry)) {
+            if (!it.hasNext()) {
+               fromIndex = null;
+               break;
+            }
+            Entry e = it.next();
+            fromIndex = new Package(e, e.ancestorSize, e.ancestorFee);
+         }
+         Package best = byModifiedFeeRate.isEmpty() ? null : byModifiedFeeRate.first();
+         if (fromIndex != null && (best == null || byModifiedFeeRate.comparator().compare(fromIndex, best) < 0)) {
+            best = fromIndex;
+            fromIndex = null;
+         } else if (best != null) {
+            byModifiedFeeRate.remove(best);
+            modified.remove(best.entry);
+         } else {
+            break;
+         }
+         if (bytes + best.size > maxBytes) {
+            dropped.add(best.entry);
+            skipped++;
+            continue;
+         }
+         skipped = 0;
+
+         ArrayList<Entry> pkg = new ArrayList<Entry>();
+         for (Entry a : relatives(best.entry, true))
+            if (!taken.contains(a))
+               pkg.add(a);
+         pkg.add(best.entry);
+         Collections.sort(pkg, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+               return Integer.compare(a.ancestorCount, b.ancestorCount);
+            }
+         });
+         for (Entry p : pkg) {
+            if (handler.apply(p.tx) != ValidationResult.VALID) {
+               dropped.add(p);
+               break;
+            }
+            selected.add(p.tx);
+            taken.add(p);
+            bytes += p.size;
+            Package left = modified.remove(p);
+            if (left != null)
+               byModifiedFeeRate.remove(left);
+            for (Entry d : relatives(p, false)) {
+               if (taken.contains(d))
+                  continue;
+               Package m = modified.get(d);
+               if (m == null) {
+                  m = new Package(d, d.ancestorSize, d.ancestorFee);
+                  modified.put(d, m);
+               } else {
+                  byModifiedFeeRate.remove(m);
+               }
+               m.size -= p.size;
+               m.fee -= p.fee;
+               byModifiedFeeRate.add(m);
+            }
+         }
+      }
+      return selected;
+   }
+
+   /* The valid pool ancestors of e, if up, or its valid pool descendants,
+    * found by walking the links; waiting entries have no valid descendants,
+    * so they end the walk down
+    */
+   private static ArrayList<Entry> relatives(Entry e, boolean up) {
+      ArrayList<Entry> found = new ArrayList<Entry>();
+      HashSet<Entry> seen = new HashSet<Entry>();
+      seen.add(e);
+      found.add(e);
+      for (int i = 0; i < found.size(); i++)
+         for (Entry r : up ? found.get(i).parents : found.get(i).children)
+            if (r.valid && seen.add(r))
+               found.add(r);
+      found.remove(0);
+      return found;
+   }
+
+   /* Add e to the pool, link it to the pool transactions it spends and that
+    * spend it, and try to admit e and then any spenders waiting for it
+    */
+   private void insert(Entry e) {
+      H.put(e.hash, e);
+      byArrival.put(e.seq, e);
+      bytes += e.size;
+      for (Transaction.Input in : e.tx.getInputs()) {
+         if (in.prevTxHash == null)
+            continue;
+         ByteArrayWrapper prev = new ByteArrayWrapper(in.prevTxHash);
+         ArrayList<Entry> list = spenders.get(prev);
+         if (list == null) {
+            list = new ArrayList<Entry>();
+            spenders.put(prev, list);
+         }
+         if (!list.contains(e))
+            list.add(e);
+         Entry parent = H.get(prev);
+         if (parent != null && !e.parents.contains(parent)) {
+            e.parents.add(parent);
+            parent.children.add(e);
+         }
+      }
+      ArrayList<Entry> children = spenders.get(e.hash);
+      if (children != null) {
+         for (Entry child : children) {
+            if (child.parents.contains(e))
+               continue;
+            child.parents.add(e);
+            e.children.add(child);
+         }
+      }
+      admit(e);
+   }
+
+   // take e out of the pool and unlink it; what spends it stays
+   private void remove(Entry e) {
+      ArrayList<Entry> ancestors = e.valid ? relatives(e, true) : new ArrayList<Entry>();
+      ArrayList<Entry> descendants = e.valid ? relatives(e, false) : new ArrayList<Entry>();
+      H.remove(e.hash);
+      byArrival.remove(e.seq);
+      byFeeRate.remove(e);
+      byAncestorFeeRate.remove(e);
+      waiting.remove(e.seq);
+      bytes -= e.size;
+      for (Transaction.Input in : e.tx.getInputs()) {
+         if (in.prevTxHash == null)
+            continue;
+         if (e.valid) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (spentBy.get(utxo) == e)
+               spentBy.remove(utxo);
+         }
+         ByteArrayWrapper prev = new ByteArrayWrapper(in.prevTxHash);
+         ArrayList<Entry> list = spenders.get(prev);
+         if (list != null && list.remove(e) && list.isEmpty())
+            spenders.remove(prev);
+      }
+      for (Entry parent : e.parents)
+         parent.children.remove(e);
+      for (Entry child : e.children)
+         child.parents.remove(e);
+      e.parents.clear();
+      e.children.clear();
+      // e may have been all that linked its ancestors to its descendants
+      for (Entry a : ancestors)
+         recount(a, false);
+      for (Entry d : descendants)
+         recount(d, true);
+   }
+
+   // work out the ancestor (up) or descendant package totals of e again
+   private void recount(Entry e, boolean up) {
+      TreeSet<Entry> index = up ? byAncestorFeeRate : byFeeRate;
+      index.remove(e);
+      int count = 1;
+      long size = e.size;
+      double fee = e.fee;
+      for (Entry r : relatives(e, up)) {
+         count++;
+         size += r.size;
+         fee += r.fee;
+      }
+      if (up) {
+         e.ancestorCount = count;
+         e.ancestorSize = size;
+         e.ancestorFee = fee;
+      } else {
+         e.descendantCount = count;
+         e.descendantSize = size;
+         e.descendantFee = fee;
+      }
+      index.add(e);
+   }
+
+   // remove e and everything in the pool that spends it, directly or not
+   private void removeWithDescendants(Entry e) {
+      ArrayList<Entry> doomed = new ArrayList<Entry>();
+      HashSet<Entry> seen = new HashSet<Entry>();
+      doomed.add(e);
+      seen.add(e);
+      for (int i = 0; i < doomed.size(); i++)
+         for (Entry child : doomed.get(i).children)
+            if (seen.add(child))
+               doomed.add(child);
+      for (Entry d : doomed)
+         remove(d);
+   }
+
+   // drop transactions, and their descendants, older than maxAgeMillis
+   private void expire(long now) {
+      while (!byArrival.isEmpty()) {
+         Entry oldest = byArrival.firstEntry().getValue();
+         if (now - oldest.time <= maxAgeMillis)
+            break;
+         removeWithDescendants(oldest);
+      }
+   }
+
+   /* Check e against the tip view and the pool's own outputs. If every
+    * output e spends is found, e is validated against them and, if valid and
+    * free of conflicts (or a better replacement for what it conflicts with),
+    * gets its fee and its place in the index, and then the spenders waiting
+    * for it are checked in turn; otherwise e and what spends it are dropped.
+    * If an output is in neither, or comes from a pool transaction still
+    * waiting itself, e keeps waiting, unless the output's transaction was
+    * confirmed and so the output is already spent. Returns whether e is
+    * still in the pool.
+    */
+   private boolean admit(Entry e) {
+      UTXOPool spent = new UTXOPool();
+      ArrayList<Entry> conflicts = new ArrayList<Entry>();
+      for (Transaction.Input in : e.tx.getInputs()) {
+         if (in.prevTxHash == null) {
+            removeWithDescendants(e);
+            return false;
+         }
+         UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+         Transaction.Output output = view.getTxOutput(utxo);
+         if (output == null) {
+            ByteArrayWrapper prev = new ByteArrayWrapper(in.prevTxHash);
+            Entry parent = H.get(prev);
+            if (parent == null && confirmed.containsKey(prev)) {
+               removeWithDescendants(e);
+               return false;
+            }
+            if (parent != null && !parent.valid) {
+               waiting.put(e.seq, e);
+               return true;
+            }
+            if (parent != null && in.outputIndex >= 0 && in.outputIndex < parent.tx.numOutputs())
+               output = parent.tx.getOutput(in.outputIndex);
+         }
+         if (output == null) {
+            waiting.put(e.seq, e);
+            return true;
+         }
+         Entry conflict = spentBy.get(utxo);
+         if (conflict != null && conflict != e && !conflicts.contains(conflict))
+            conflicts.add(conflict);
+         spent.addUTXO(utxo, output);
+      }
+      if (!conflicts.isEmpty() && !replaceByFee) {
+         removeWithDescendants(e);
+         return false;
+      }
+
+      TxHandler handler = new TxHandler(spent);
+      handler.setVerifySignatures(!verified.containsKey(e.hash));
+      ValidationResult result = handler.validate(e.tx);
+      if (result != ValidationResult.VALID) {
+         if (result.isPermanent())
+            invalid.put(e.hash, Boolean.TRUE);
+         removeWithDescendants(e);
+         return false;
+      }
+      verified.put(e.hash, Boolean.TRUE);
+
+      double inputSum = 0;
+      for (UTXO utxo : spent.getAllUTXO())
+         inputSum += spent.getTxOutput(utxo).value;
+      double outputSum = 0;
+      for (Transaction.Output out : e.tx.getOutputs())
+         outputSum += out.value;
+      double fee = inputSum - outputSum;
+      ArrayList<Entry> ancestors = relatives(e, true);
+      boolean fits = ancestors.size() < MAX_PACKAGE_TXS;
+      for (Entry a : ancestors)
+         fits = fits && a.descendantCount < MAX_PACKAGE_TXS;
+      if (!fits) {
+         removeWithDescendants(e);
+         return false;
+      }
+      if (!conflicts.isEmpty()) {
+         if (!replaces(e, fee, conflicts)) {
+            removeWithDescendants(e);
+            return false;
+         }
+         for (Entry conflict : conflicts)
+            if (H.get(conflict.hash) == conflict)
+               removeWithDescendants(conflict);
+      }
+
+      // the index is ordered by fee, so e must be out of it while that changes
+      byFeeRate.remove(e);
+      e.fee = fee;
+      e.ancestorCount = e.descendantCount = 1;
+      e.ancestorSize = e.descendantSize = e.size;
+      e.ancestorFee = e.descendantFee = fee;
+      for (Entry a : ancestors) {
+         e.ancestorCount++;
+         e.ancestorSize += a.size;
+         e.ancestorFee += a.fee;
+         byFeeRate.remove(a);
+         a.descendantCount++;
+         a.descendantSize += e.size;
+         a.descendantFee += fee;
+         byFeeRate.add(a);
+      }
+      e.valid = true;
+      waiting.remove(e.seq);
+      byFeeRate.add(e);
+      byAncestorFeeRate.add(e);
+      for (Transaction.Input in : e.tx.getInputs())
+         spentBy.put(new UTXO(in.prevTxHash, in.outputIndex), e);
+
+      for (Entry child : new ArrayList<Entry>(e.children))
+         if (!child.valid && H.get(child.hash) == child)
+            admit(child);
+      return true;
+   }
+
+   /* Whether e, paying fee, may replace the transactions it conflicts with:
+    * a higher fee rate than each of them, a higher fee than all of them and
+    * their descendants together, none of which e may itself spend, and no
+    * more than MAX_REPLACED_TXS of them
+    */
+   private boolean replaces(Entry e, double fee, ArrayList<Entry> conflicts) {
+      double feeRate = fee / e.size;
+      for (Entry conflict : conflicts)
+         if (feeRate <= conflict.getFeeRate())
+            return false;
+      ArrayList<Entry> evicted = new ArrayList<Entry>();
+      HashSet<Entry> seen = new HashSet<Entry>(conflicts);
+      evicted.addAll(conflicts);
+      for (int i = 0; i < evicted.size(); i++) {
+         if (evicted.size() > MAX_REPLACED_TXS)
+            return false;
+         for (Entry child : evicted.get(i).children)
+            if (seen.add(child))
+               evicted.add(child);
+      }
+      double evictedFee = 0;
+      for (Entry victim : evicted) {
+         if (e.parents.contains(victim))
+            return false;
+         evictedFee += victim.fee;
+      }
+      return fee > evictedFee;
+   }
+
+   private static TreeSet<Entry> newFeeRateIndex() {
+      return new TreeSet<Entry>(new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            int c = Double.compare(b.getDescendantScore(), a.getDescendantScore());
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+         }
+      });
+   }
+
+   private static TreeSet<Entry> newAncestorFeeRateIndex() {
+      return new TreeSet<Entry>(new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            int c = Double.compare(b.getAncestorFeeRate(), a.getAncestorFeeRate());
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+         }
+      });
+   }
+
+   private static TreeSet<Package> newPackageIndex() {
+      return new TreeSet<Package>(new Comparator<Package>() {
+         public int compare(Package a, Package b) {
+            int c = Double.compare(b.fee / b.size, a.fee / a.size);
+            return c != 0 ? c : Long.compare(a.entry.seq, b.entry.seq);
+         }
+      });
+   }
+
+   private static Map<ByteArrayWrapper, Boolean> newCache(final int maxSize) {
+      return Collections.synchronizedMap(new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+            return size() > maxSize;
+         }
+      });
+   }
 }
@@ -1,10 +1,40 @@
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 
 public class TxHandler {
 
+	// marks the end of an epoch streamed through a BlockingQueue; only this 
+	// instance does, so it is kept private and compared by identity
+	private static final Transaction END_OF_EPOCH = new Transaction();
+
 	private UTXOPool publicLedger;
 	
+	// number of transactions rejected by each validation stage
+	private AtomicLongArray rejected = new AtomicLongArray(ValidationResult.Stage.values().length);
+	
+	// undo log of (utxo, output it mapped to before, or null) while a savepoint is open
+	private boolean logging;
+	private ArrayList<UTXO> undoKeys = new ArrayList<UTXO>();
+	private ArrayList<Transaction.Output> undoValues = new ArrayList<Transaction.Output>();
+	// open savepoints, oldest first: their handles and their places in the log
+	private ArrayList<Integer> savepoints = new ArrayList<Integer>();
+	private ArrayList<Integer> savepointMarks = new ArrayList<Integer>();
+	private int nextSavepoint;
+	
+	// false while checking blocks assumed valid, whose signatures are trusted
+	private boolean verifySignatures = true;
+	
 	/* Creates a public ledger whose current UTXOPool (collection of unspent 
 	 * transaction outputs) is utxoPool. This should make a defensive copy of 
 	 * utxoPool by using the UTXOPool(UTXOPool uPool) constructor.
@@ -23,83 +53,105 @@ public class TxHandler {
 	   and false otherwise.
 	 */
 	public boolean isValidTx(Transaction tx) {
-		boolean isValid = true;
+		return validate(tx) == ValidationResult.VALID;
+	}
+	
+	/* Checks the conditions of isValidTx in stages, cheapest first: syntax 
+	 * (3) and (4), UTXO lookup (1), amounts (5) and finally signatures (2). 
+	 * Returns VALID, or the reason given by the first stage that failed, and 
+	 * counts the rejection against that stage.
+	 */
+	public ValidationResult validate(Transaction tx) {
+		return record(check(tx, publicLedger, verifySignatures));
+	}
+	
+	/* Turns the signature stage on or off. Only for transactions in blocks 
+	 * already known to be signed correctly, such as the ancestors of an 
+	 * assume-valid block; every other stage still runs.
+	 */
+	public void setVerifySignatures(boolean verify) {
+		verifySignatures = verify;
+	}
+	
+	/* Returns how many transactions the given validation stage has rejected 
+	 * since this handler was created.
+	 */
+	public long getRejectedCount(ValidationResult.Stage stage) {
+		return rejected.get(stage.ordinal());
+	}
+	
+	private ValidationResult record(ValidationResult result) {
+		if (result != ValidationResult.VALID)
+			rejected.incrementAndGet(result.getStage().ordinal());
+		return result;
+	}
+	
+	/* Runs only the syntax stage, which needs no UTXO pool: returns 
+	 * DUPLICATE_INPUT if (3) fails, NEGATIVE_OUTPUT if (4) fails and VALID 
+	 * otherwise. Safe to call from any thread.
+	 */
+	public static ValidationResult checkSyntax(Transaction tx) {
+		// (3) no UTXO is claimed multiple times by tx,
+		if (ValidationContext.get().hasDuplicateInput(tx.getInputs()))
+			return ValidationResult.DUPLICATE_INPUT;
 		
-		double txInputSum = 0.0;
-        double txOutputSum = 0.0;
-		
-		//create a list of claimed outputs (inputs claim outputs)
-		ArrayList<UTXO> claimedOutputs = new ArrayList<UTXO>();
-		for (Transaction.Input input : tx.getInputs()) {
-            UTXO claimedOutput = new UTXO(input.prevTxHash, input.outputIndex);
-            claimedOutputs.add(claimedOutput);
-        }
-		
-		// (1) all outputs claimed by tx are in the current UTXO pool,
-		for (UTXO claimedOutput : claimedOutputs) {
-		    if(!publicLedger.contains(claimedOutput)){
-//		    	System.out.println("In 1");
-		        isValid = false;
-		        break;
-		    }
-        }
-		
-		// (2) the signatures on each input of tx are valid
-		if (isValid) {
-			ArrayList<Transaction.Input> inputs = tx.getInputs();
-			for(int i = 0; i < inputs.size(); i++) {
-				RSAKey publicKey = publicLedger.getTxOutput(claimedOutputs.get(i)).address;
-				byte[] rawData = tx.getRawDataToSign(i);
-				byte[] signature = inputs.get(i).signature;
-				if (publicKey == null || rawData == null || signature == null || 
-						!publicKey.verifySignature(rawData, inputs.get(i).signature)) {
-//					System.out.println("In 2");
-					isValid = false;
-					break;
-				}
-			}
+		// (4) all of tx's output values are non-negative
+		ArrayList<Transaction.Output> outputs = tx.getOutputs();
+		for (int i = 0; i < outputs.size(); i++)
+			if (outputs.get(i).value < 0.0)
+				return ValidationResult.NEGATIVE_OUTPUT;
+		
+		return ValidationResult.VALID;
+	}
+	
+	// runs the validation stages against the given ledger without counting, 
+	// using the calling thread's ValidationContext for scratch space, the 
+	// signed bytes included; the signature stage only runs if signatures is set
+	private static ValidationResult check(Transaction tx, UTXOPool ledger, boolean signatures) {
+		ValidationContext context = ValidationContext.get();
+		ArrayList<Transaction.Input> inputs = tx.getInputs();
+		ArrayList<Transaction.Output> outputs = tx.getOutputs();
+		int nInputs = inputs.size();
+		
+		// syntax: (3) and (4)
+		ValidationResult syntax = checkSyntax(tx);
+		if (syntax != ValidationResult.VALID)
+			return syntax;
+		
+		// UTXO lookup: (1) all outputs claimed by tx are in the current UTXO pool,
+		Transaction.Output[] spentOutputs = context.spentOutputs(nInputs);
+		for (int i = 0; i < nInputs; i++) {
+			Transaction.Input input = inputs.get(i);
+			spentOutputs[i] = input.prevTxHash == null ? null : 
+					ledger.getTxOutput(context.probe(input.prevTxHash, input.outputIndex));
+			if (spentOutputs[i] == null)
+				return ValidationResult.MISSING_INPUT;
 		}
 		
-		// (3) no UTXO is claimed multiple times by tx,
-		if (isValid){
-		    //Convert to set to remove repetitions
-		    HashSet<UTXO> utxoSet = new HashSet<>();
-		    for(UTXO claimedOutput : claimedOutputs){
-		        utxoSet.add(claimedOutput);
-		    }
-		    if(utxoSet.size() < claimedOutputs.size()) {
-//		    	System.out.println("In 3");
-		    	isValid = false;
-		    }
+		// amounts: (5) the sum of tx's input values is greater than or equal to 
+		//     the sum of its output values;
+		double txInputSum = 0.0;
+		for (int i = 0; i < nInputs; i++)
+			txInputSum += spentOutputs[i].value;
+		double txOutputSum = 0.0;
+		for (int i = 0; i < outputs.size(); i++)
+			txOutputSum += outputs.get(i).value;
+		if (txInputSum < txOutputSum)
+			return ValidationResult.INSUFFICIENT_INPUT;
+		
+		// signatures: (2) the signatures on each input of tx are valid
+		if (signatures && nInputs > 0)
+			context.beginSignatures(tx);
+		for (int i = 0; signatures && i < nInputs; i++) {
+			RSAKey publicKey = spentOutputs[i].address;
+			byte[] rawData = context.signedData(tx, i);
+			byte[] signature = inputs.get(i).signature;
+			if (publicKey == null || rawData == null || signature == null || 
+					!publicKey.verifySignature(rawData, signature))
+				return ValidationResult.INVALID_SIGNATURE;
 		}
 		
-		// (4) all of tx's output values are non-negative
-		if(isValid){
-		    for (Transaction.Output output : tx.getOutputs()){
-	            txOutputSum += output.value;
-	            if (output.value < 0.0){
-//	            	System.out.println("In 4");
-	                isValid = false;
-	                break;
-	            }
-	        }
-		}
-		
-		// (5) the sum of tx's input values is greater than or equal to the sum of   
-		//     its output values;
-		if (isValid){
-		    //get sum of transaction inputs
-	        for(UTXO claimedOutput : claimedOutputs){
-	            txInputSum += publicLedger.getTxOutput(claimedOutput).value;
-	        }
-	        
-            if(txInputSum < txOutputSum) {
-//            	System.out.println("In 5");
-            	isValid = false;
-            }
-        }
-		
-		return isValid;
+		return ValidationResult.VALID;
 	}
 
 	/* Handles each epoch by receiving an unordered array of proposed 
@@ -108,32 +160,429 @@ public class TxHandler {
 	 * and updating the current UTXO pool as appropriate.
 	 */
 	public Transaction[] handleTxs(Transaction[] possibleTxs) {
-	    //TODO: Still need to update UTXO pool "as necessary"
+		final ArrayList<Transaction> acceptedTxs = new ArrayList<Transaction>();
+		handleTxs(Arrays.asList(possibleTxs).iterator(), new Consumer<Transaction>() {
+			public void accept(Transaction tx) {
+				acceptedTxs.add(tx);
+			}
+		});
+		return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+	}
+	
+	/* Streaming form of handleTxs. Pulls proposed transactions from 
+	 * possibleTxs one at a time and hands each accepted one to onAccept as 
+	 * soon as it has been applied, so the UTXO pool is consistent whenever 
+	 * onAccept runs and nothing is buffered. Since the epoch is pulled, a 
+	 * slow consumer naturally slows down the source.
+	 */
+	public void handleTxs(Iterator<Transaction> possibleTxs, Consumer<Transaction> onAccept) {
+		while (possibleTxs.hasNext()) {
+			Transaction tx = possibleTxs.next();
+			if (tryApply(tx))
+				onAccept.accept(tx);
+		}
+	}
+	
+	/* Returns the marker a producer puts on the queue given to the 
+	 * BlockingQueue form of handleTxs to end the epoch. The marker is 
+	 * recognised by identity alone: an empty transaction built elsewhere, 
+	 * or a copy of the marker, is handled like any other transaction.
+	 */
+	public static Transaction endOfEpoch() {
+		return END_OF_EPOCH;
+	}
+	
+	/* Streaming form of handleTxs for transactions produced on other threads. 
+	 * Takes transactions from possibleTxs until endOfEpoch() is taken, 
+	 * handing each accepted one to onAccept as it is decided. Give it a 
+	 * bounded queue (an ArrayBlockingQueue, say) and producers block once 
+	 * they get that far ahead of validation.
+	 */
+	public void handleTxs(BlockingQueue<Transaction> possibleTxs, Consumer<Transaction> onAccept) 
+			throws InterruptedException {
+		for (Transaction tx = possibleTxs.take(); tx != END_OF_EPOCH; tx = possibleTxs.take())
+			if (tryApply(tx))
+				onAccept.accept(tx);
+	}
+	
+	/* Validates tx against the current UTXO pool and, if it is valid, applies 
+	 * it: its claimed outputs are removed from the pool and its own outputs 
+	 * added. Returns true if tx was applied.
+	 */
+	public boolean tryApply(Transaction tx) {
+		return apply(tx) == ValidationResult.VALID;
+	}
+	
+	/* Same as tryApply, but returns the result of validating tx, which says 
+	 * why it was not applied.
+	 */
+	public ValidationResult apply(Transaction tx) {
+		ValidationResult result = validate(tx);
+		if (result == ValidationResult.VALID)
+			applyTx(tx);
+		return result;
+	}
+	
+	/* Marks the current state of the UTXO pool and returns a handle that 
+	 * rollbackTo accepts. While any savepoint is open, every change to the 
+	 * pool is recorded in an undo log instead of copying the pool. Handles 
+	 * are never reused.
+	 */
+	public int savepoint() {
+		logging = true;
+		savepoints.add(nextSavepoint);
+		savepointMarks.add(undoKeys.size());
+		return nextSavepoint++;
+	}
+	
+	/* Undoes every change made to the UTXO pool since the given savepoint 
+	 * was taken. The savepoint, and any taken before it, stay open; those 
+	 * taken after it are closed, since the state they marked is gone. 
+	 * Throws IllegalArgumentException for a savepoint that is not open.
+	 */
+	public void rollbackTo(int savepoint) {
+		int k = savepoints.lastIndexOf(savepoint);
+		if (k < 0)
+			throw new IllegalArgumentException("unknown savepoint " + savepoint);
+		int mark = savepointMarks.get(k);
+		for (int i = savepoints.size() - 1; i > k; i--) {
+			savepoints.remove(i);
+			savepointMarks.remove(i);
+		}
+		for (int i = undoKeys.size() - 1; i >= mark; i--) {
+			UTXO utxo = undoKeys.remove(i);
+			Transaction.Output previous = undoValues.remove(i);
+			if (previous == null)
+				publicLedger.removeUTXO(utxo);
+			else
+				publicLedger.addUTXO(utxo, previous);
+		}
+	}
+	
+	/* Keeps every change made so far, discards the undo log and closes all 
+	 * open savepoints.
+	 */
+	public void commit() {
+		logging = false;
+		undoKeys.clear();
+		undoValues.clear();
+		savepoints.clear();
+		savepointMarks.clear();
+	}
+	
+	// removes tx's claimed outputs from the public ledger and adds its own
+	private void applyTx(Transaction tx) {
+		//remove claimed UTXOs from the public ledger
+		for (Transaction.Input input : tx.getInputs())
+			removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+		
+		//add new UTXOs to the public ledger
+		byte[] txHash = tx.getHash();
+		ArrayList<Transaction.Output> txOutputs = tx.getOutputs();
+		for (int i = 0; i < txOutputs.size(); i++)
+			addUTXO(new UTXO(txHash, i), txOutputs.get(i));
+	}
+	
+	// every change to the public ledger goes through these two, so that open 
+	// savepoints can undo it
+	private void removeUTXO(UTXO utxo) {
+		if (logging) {
+			Transaction.Output previous = publicLedger.getTxOutput(utxo);
+			if (previous == null)
+				return;
+			undoKeys.add(utxo);
+			undoValues.add(previous);
+		}
+		publicLedger.removeUTXO(utxo);
+	}
+	
+	private void addUTXO(UTXO utxo, Transaction.Output output) {
+		if (logging) {
+			undoKeys.add(utxo);
+			undoValues.add(publicLedger.getTxOutput(utxo));
+		}
+		publicLedger.addUTXO(utxo, output);
+	}
+	
+	/* Same result as handleTxs, but spreads the work over nThreads workers.
+	 * possibleTxs is partitioned into connected components of transactions
+	 * that claim a common output or spend one another's outputs. Components
+	 * share no UTXOs, so each one is handled sequentially (in epoch order) on
+	 * its own worker against a private slice of the pool, and the slices are
+	 * merged back into the current UTXO pool at the end.
+	 */
+	public Transaction[] handleTxsParallel(Transaction[] possibleTxs, int nThreads) {
+		int n = possibleTxs.length;
+		
+		//union transactions sharing a claimed output or linked parent to child
+		int[] component = new int[n];
+		for (int i = 0; i < n; i++)
+			component[i] = i;
+		HashMap<ByteArrayWrapper, Integer> creator = new HashMap<ByteArrayWrapper, Integer>();
+		for (int i = 0; i < n; i++) {
+			ByteArrayWrapper hash = new ByteArrayWrapper(possibleTxs[i].getHash());
+			Integer first = creator.get(hash);
+			if (first == null)
+				creator.put(hash, i);
+			else
+				union(component, first, i);
+		}
+		HashMap<UTXO, Integer> claimant = new HashMap<UTXO, Integer>();
+		for (int i = 0; i < n; i++) {
+			for (Transaction.Input input : possibleTxs[i].getInputs()) {
+				Integer other = claimant.put(new UTXO(input.prevTxHash, input.outputIndex), i);
+				if (other != null)
+					union(component, other, i);
+				Integer parent = creator.get(new ByteArrayWrapper(input.prevTxHash));
+				if (parent != null)
+					union(component, parent, i);
+			}
+		}
+		
+		//gather components, each listing its transactions in epoch order
+		HashMap<Integer, ArrayList<Integer>> members = new HashMap<Integer, ArrayList<Integer>>();
+		for (int i = 0; i < n; i++) {
+			int root = find(component, i);
+			ArrayList<Integer> list = members.get(root);
+			if (list == null) {
+				list = new ArrayList<Integer>();
+				members.put(root, list);
+			}
+			list.add(i);
+		}
+		
+		//deal the components out to the workers
+		int workers = Math.max(1, Math.min(nThreads, members.size()));
+		ArrayList<ArrayList<ArrayList<Integer>>> buckets = new ArrayList<ArrayList<ArrayList<Integer>>>();
+		for (int w = 0; w < workers; w++)
+			buckets.add(new ArrayList<ArrayList<Integer>>());
+		int next = 0;
+		for (ArrayList<Integer> list : members.values())
+			buckets.get(next++ % workers).add(list);
+		
+		ArrayList<Callable<ArrayList<ComponentResult>>> tasks = new ArrayList<Callable<ArrayList<ComponentResult>>>();
+		for (final ArrayList<ArrayList<Integer>> bucket : buckets) {
+			tasks.add(new Callable<ArrayList<ComponentResult>>() {
+				public ArrayList<ComponentResult> call() {
+					ArrayList<ComponentResult> done = new ArrayList<ComponentResult>();
+					for (ArrayList<Integer> list : bucket)
+						done.add(handleComponent(possibleTxs, list));
+					return done;
+				}
+			});
+		}
+		ArrayList<ComponentResult> results = new ArrayList<ComponentResult>();
+		for (ArrayList<ComponentResult> done : runAll(tasks))
+			results.addAll(done);
+		
+		//merge each component's slice of the pool back into the public ledger
+		boolean[] accepted = new boolean[n];
+		for (ComponentResult result : results) {
+			for (UTXO utxo : result.claimed)
+				if (!result.slice.contains(utxo))
+					removeUTXO(utxo);
+			for (UTXO utxo : result.slice.getAllUTXO())
+				addUTXO(utxo, result.slice.getTxOutput(utxo));
+			for (int i : result.accepted)
+				accepted[i] = true;
+			for (int k = 0; k < rejected.length(); k++)
+				rejected.addAndGet(k, result.rejected.get(k));
+		}
+		
+		ArrayList<Transaction> acceptedTxs = new ArrayList<Transaction>();
+		for (int i = 0; i < n; i++)
+			if (accepted[i])
+				acceptedTxs.add(possibleTxs[i]);
+		return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+	}
+	
+	// the outcome of handling one component against its own slice of the pool
+	private static class ComponentResult {
+		ArrayList<UTXO> claimed = new ArrayList<UTXO>();
+		UTXOPool slice;
+		ArrayList<Integer> accepted = new ArrayList<Integer>();
+		AtomicLongArray rejected;
+	}
+	
+	/* Runs handleTxs over the transactions of one component, against a pool
+	 * holding only the outputs they claim. Only reads the public ledger.
+	 */
+	private ComponentResult handleComponent(Transaction[] possibleTxs, ArrayList<Integer> list) {
+		ComponentResult result = new ComponentResult();
+		UTXOPool slice = new UTXOPool();
+		Transaction[] txs = new Transaction[list.size()];
+		for (int k = 0; k < txs.length; k++) {
+			txs[k] = possibleTxs[list.get(k)];
+			for (Transaction.Input input : txs[k].getInputs()) {
+				UTXO claimedOutput = new UTXO(input.prevTxHash, input.outputIndex);
+				if (publicLedger.contains(claimedOutput)) {
+					slice.addUTXO(claimedOutput, publicLedger.getTxOutput(claimedOutput));
+					result.claimed.add(claimedOutput);
+				}
+			}
+		}
+		TxHandler handler = new TxHandler(slice);
+		handler.verifySignatures = verifySignatures;
+		Transaction[] acceptedTxs = handler.handleTxs(txs);
+		result.slice = handler.getUTXOPool();
+		result.rejected = handler.rejected;
+		
+		//accepted transactions come back in the order they were given
+		int k = 0;
+		for (Transaction tx : acceptedTxs) {
+			while (txs[k] != tx)
+				k++;
+			result.accepted.add(list.get(k));
+		}
+		return result;
+	}
+	
+	/* Same result as handleTxs, executed optimistically in the style of
+	 * Block-STM. Workers first validate every transaction in parallel against
+	 * a versioned view of the pool: the current UTXO pool plus the outputs of
+	 * all earlier transactions in the epoch, ignoring their spends. Each
+	 * execution records its read set (the output version it saw for every
+	 * claimed UTXO) and its write set. The results are then committed in epoch order;
+	 * a transaction whose reads no longer match the committed pool is
+	 * re-executed against it. Validity only depends on the claimed outputs,
+	 * so a matching read set means the speculative verdict is the sequential
+	 * one, and only conflicting transactions pay for validation twice.
+	 */
+	public Transaction[] handleTxsSpeculative(final Transaction[] possibleTxs, int nThreads) {
+		final int n = possibleTxs.length;
+		
+		//version of each output written by the epoch: its first writer
+		final HashMap<UTXO, Integer> writer = new HashMap<UTXO, Integer>();
+		for (int i = 0; i < n; i++) {
+			byte[] txHash = possibleTxs[i].getHash();
+			for (int j = 0; j < possibleTxs[i].numOutputs(); j++) {
+				UTXO utxo = new UTXO(txHash, j);
+				if (!writer.containsKey(utxo))
+					writer.put(utxo, i);
+			}
+		}
+		
+		//speculative phase: read-only against the public ledger
+		final Execution[] executions = new Execution[n];
+		final AtomicInteger nextTx = new AtomicInteger();
+		int workers = Math.max(1, Math.min(nThreads, n));
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int w = 0; w < workers; w++) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (int i = nextTx.getAndIncrement(); i < n; i = nextTx.getAndIncrement())
+						executions[i] = execute(possibleTxs, i, writer);
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+		
+		//commit phase: in epoch order, re-executing on stale reads
 		ArrayList<Transaction> acceptedTxs = new ArrayList<Transaction>();
-//		System.out.println("Size: " + possibleTxs.length);
-		for(Transaction tx : possibleTxs){
-		    if (isValidTx(tx)) {
-                //add tx to list of accepted transactions
-		        acceptedTxs.add(tx);
-		        
-		        //remove claimed UTXOs from the public ledger
-                for (Transaction.Input input : tx.getInputs()) {
-                    UTXO claimedOutput = new UTXO(input.prevTxHash, input.outputIndex);
-                    publicLedger.removeUTXO(claimedOutput);
-                }
-                
-                //add new UTXOs to the public ledger
-                byte[] txHash = tx.getHash();
-                ArrayList<Transaction.Output> txOutputs = tx.getOutputs(); 
-                for(int i = 0; i < txOutputs.size(); i++) {
-                    UTXO utxo = new UTXO(txHash, i);
-                    publicLedger.addUTXO(utxo, txOutputs.get(i));
-                }
-            }
+		for (int i = 0; i < n; i++) {
+			Transaction tx = possibleTxs[i];
+			Execution execution = executions[i];
+			ValidationResult result = execution.result;
+			for (int k = 0; k < execution.reads.length; k++) {
+				if (publicLedger.getTxOutput(execution.reads[k]) != execution.seen[k]) {
+					result = check(tx, publicLedger, verifySignatures);
+					break;
+				}
+			}
+			if (record(result) == ValidationResult.VALID) {
+				acceptedTxs.add(tx);
+				for (UTXO claimedOutput : execution.reads)
+					removeUTXO(claimedOutput);
+				for (int j = 0; j < execution.writes.length; j++)
+					addUTXO(execution.writes[j], tx.getOutput(j));
+			}
 		}
 		return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
 	}
 	
+	// one speculative execution of a transaction and the state it touched
+	private static class Execution {
+		ValidationResult result;
+		UTXO[] reads;
+		Transaction.Output[] seen;
+		UTXO[] writes;
+	}
+	
+	/* Validates possibleTxs[i] against the public ledger overlaid with the
+	 * outputs of possibleTxs[0..i-1], recording what it read and would write.
+	 */
+	private Execution execute(Transaction[] possibleTxs, int i, HashMap<UTXO, Integer> writer) {
+		Transaction tx = possibleTxs[i];
+		Execution execution = new Execution();
+		int nInputs = tx.numInputs();
+		execution.reads = new UTXO[nInputs];
+		execution.seen = new Transaction.Output[nInputs];
+		UTXOPool view = new UTXOPool();
+		for (int k = 0; k < nInputs; k++) {
+			Transaction.Input input = tx.getInput(k);
+			UTXO claimedOutput = new UTXO(input.prevTxHash, input.outputIndex);
+			Transaction.Output output = publicLedger.getTxOutput(claimedOutput);
+			if (output == null) {
+				Integer w = writer.get(claimedOutput);
+				if (w != null && w < i)
+					output = possibleTxs[w].getOutput(input.outputIndex);
+			}
+			execution.reads[k] = claimedOutput;
+			execution.seen[k] = output;
+			if (output != null)
+				view.addUTXO(claimedOutput, output);
+		}
+		execution.result = check(tx, view, verifySignatures);
+		execution.writes = new UTXO[tx.numOutputs()];
+		for (int j = 0; j < execution.writes.length; j++)
+			execution.writes[j] = new UTXO(tx.getHash(), j);
+		return execution;
+	}
+	
+	/* Runs the tasks on a pool of their own, one thread each, and returns
+	 * their results in order. A single task runs on the calling thread.
+	 */
+	private static <T> ArrayList<T> runAll(ArrayList<Callable<T>> tasks) {
+		ArrayList<T> results = new ArrayList<T>();
+		if (tasks.size() == 1) {
+			try {
+				results.add(tasks.get(0).call());
+			} catch (Exception e) {
+				throw new IllegalStateException("failed to handle transactions", e);
+			}
+			return results;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			for (Future<T> future : executor.invokeAll(tasks))
+				results.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while handling transactions", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("failed to handle transactions", e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return results;
+	}
+	
+	private static int find(int[] component, int i) {
+		while (component[i] != i) {
+			component[i] = component[component[i]];
+			i = component[i];
+		}
+		return i;
+	}
+	
+	private static void union(int[] component, int a, int b) {
+		int rootA = find(component, a);
+		int rootB = find(component, b);
+		if (rootA != rootB)
+			component[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+	}
+	
 	/* Returns the current UTXO pool.If no outstanding UTXOs, returns an empty (non-null) UTXOPool object. */
 	public UTXOPool getUTXOPool() {
 	    return (!publicLedger.getAllUTXO().isEmpty()) ? publicLedger : new UTXOPool();
@@ -0,0 +1,183 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/* Where each transaction of the best chain is: txid -> (block hash, 
+ * position in Block.getTransactions()). Coinbases are not indexed; a 
+ * coinbase's hash depends only on the address it pays, so it repeats 
+ * across blocks and names no single one.
+ *
+ * Entries live off the heap in one direct buffer, an open-addressing hash 
+ * table of SLOT_SIZE-byte slots keyed by the leading bytes of the txid. 
+ * Removed entries leave tombstones until the table is next rebuilt.
+ */
+public class TxIndex {
+   public static final int HASH_SIZE = 32;
+   private static final int INITIAL_CAPACITY = 1024;
+
+   // slot layout: state, txid, block hash, position
+   private static final int EMPTY = 0;
+   private static final int USED = 1;
+   private static final int REMOVED = 2;
+   private static final int STATE = 0;
+   private static final int TX_HASH = 4;
+   private static final int BLOCK_HASH = TX_HASH + HASH_SIZE;
+   private static final int POSITION = BLOCK_HASH + HASH_SIZE;
+   private static final int SLOT_SIZE = POSITION + 4;
+
+   private ByteBuffer table;
+   private int capacity;
+   private int count;
+   private int removed;
+
+   public TxIndex() {
+      capacity = INITIAL_CAPACITY;
+      table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+   }
+
+   /* The block and position of a transaction
+    */
+   public static final class Location {
+      private final byte[] blockHash;
+      private final int position;
+
+      private Location(byte[] blockHash, int position) {
+         this.blockHash = blockHash;
+         this.position = position;
+      }
+
+      public byte[] getBlockHash() {
+         return blockHash;
+      }
+
+      public int getPosition() {
+         return position;
+      }
+   }
+
+   /* Get where the transaction with this hash is, or null if it is not in 
+    * the index
+    */
+   public synchronized Location get(byte[] txHash) {
+      if (txHash == null || txHash.length != HASH_SIZE)
+         return null;
+      int slot = find(txHash);
+      if (slot < 0)
+         return null;
+      return new Location(bytesAt(slot, BLOCK_HASH), table.getInt(slot * SLOT_SIZE + POSITION));
+   }
+
+   public synchronized int size() {
+      return count;
+   }
+
+   // index every transaction of b but the coinbase
+   public synchronized void addBlock(Block b) {
+      ArrayList<Transaction> txs = b.getTransactions();
+      for (int i = 0; i < txs.size(); i++)
+         put(txs.get(i).getHash(), b.getHash(), i);
+   }
+
+   // drop the entries addBlock(b) made, unless a later block has taken them over
+   public synchronized void removeBlock(Block b) {
+      for (Transaction tx : b.getTransactions())
+         remove(tx.getHash(), b.getHash());
+   }
+
+   private void put(byte[] txHash, byte[] blockHash, int position) {
+      if (txHash == null || txHash.length != HASH_SIZE || blockHash == null || blockHash.length != HASH_SIZE)
+         return;
+      if ((count + removed + 1) * 4L > capacity * 3L)
+         rebuild(count * 2L >= capacity ? capacity * 2 : capacity);
+      int slot = find(txHash);
+      if (slot < 0) {
+         slot = -slot - 1;
+         if (table.getInt(slot * SLOT_SIZE + STATE) == REMOVED)
+            removed--;
+         count++;
+      }
+      putSlot(table, slot, txHash, blockHash, position);
+   }
+
+   private void remove(byte[] txHash, byte[] blockHash) {
+      if (txHash == null || txHash.length != HASH_SIZE)
+         return;
+      int slot = find(txHash);
+      if (slot < 0 || !equalsAt(slot, BLOCK_HASH, blockHash))
+         return;
+      table.putInt(slot * SLOT_SIZE + STATE, REMOVED);
+      count--;
+      removed++;
+   }
+
+   /* Find the slot holding txHash, or -(slot + 1) for the slot it should go 
+    * in: the first tombstone passed, or else the empty slot that ended the 
+    * probe
+    */
+   private int find(byte[] txHash) {
+      int slot = start(txHash, capacity);
+      int free = -1;
+      while (true) {
+         int state = table.getInt(slot * SLOT_SIZE + STATE);
+         if (state == EMPTY)
+            return -((free >= 0 ? free : slot) + 1);
+         if (state == REMOVED) {
+            if (free < 0)
+               free = slot;
+         } else if (equalsAt(slot, TX_HASH, txHash)) {
+            return slot;
+         }
+         slot = (slot + 1) % capacity;
+      }
+   }
+
+   // copy the live entries into a fresh table, dropping the tombstones
+   private void rebuild(int newCapacity) {
+      ByteBuffer newTable = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+      for (int slot = 0; slot < capacity; slot++) {
+         if (table.getInt(slot * SLOT_SIZE + STATE) != USED)
+            continue;
+         byte[] txHash = bytesAt(slot, TX_HASH);
+         int target = start(txHash, newCapacity);
+         while (newTable.getInt(target * SLOT_SIZE + STATE) != EMPTY)
+            target = (target + 1) % newCapacity;
+         putSlot(newTable, target, txHash, bytesAt(slot, BLOCK_HASH), table.getInt(slot * SLOT_SIZE + POSITION));
+      }
+      table = newTable;
+      capacity = newCapacity;
+      removed = 0;
+   }
+
+   // txids are SHA-256 digests, so their leading bytes are already well spread
+   private static int start(byte[] txHash, int capacity) {
+      int h = ((txHash[0] & 0xff) << 24) | ((txHash[1] & 0xff) << 16) | ((txHash[2] & 0xff) << 8) | (txHash[3] & 0xff);
+      return (h & 0x7fffffff) % capacity;
+   }
+
+   private static void putSlot(ByteBuffer buffer, int slot, byte[] txHash, byte[] blockHash, int position) {
+      int base = slot * SLOT_SIZE;
+      for (int i = 0; i < HASH_SIZE; i++) {
+         buffer.put(base + TX_HASH + i, txHash[i]);
+         buffer.put(base + BLOCK_HASH + i, blockHash[i]);
+      }
+      buffer.putInt(base + POSITION, position);
+      buffer.putInt(base + STATE, USED);
+   }
+
+   private boolean equalsAt(int slot, int field, byte[] hash) {
+      if (hash == null || hash.length != HASH_SIZE)
+         return false;
+      int base = slot * SLOT_SIZE + field;
+      for (int i = 0; i < HASH_SIZE; i++)
+         if (table.get(base + i) != hash[i])
+            return false;
+      return true;
+   }
+
+   private byte[] bytesAt(int slot, int field) {
+      byte[] hash = new byte[HASH_SIZE];
+      int base = slot * SLOT_SIZE + field;
+      for (int i = 0; i < HASH_SIZE; i++)
+         hash[i] = table.get(base + i);
+      return hash;
+   }
+}
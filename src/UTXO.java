@@ -21,6 +21,14 @@ public class UTXO implements Comparable<UTXO> {
       this.index = index;
    }
    
+   // Points this UTXO at output <index> of <txHash> without copying <txHash>, 
+   // so one instance can be reused as a lookup key. Never call this on a UTXO 
+   // that is stored in a pool or any other hashed collection
+   void reset(byte[] txHash, int index) {
+      this.txHash = txHash;
+      this.index = index;
+   }
+   
    // Returns the transaction hash of this UTXO
    public byte[] getTxHash() {
       return txHash;
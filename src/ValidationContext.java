@@ -0,0 +1,135 @@
+/* 
+ * ValidationContext.java
+ * 
+ * Per-thread scratch space for TxHandler's validation stages, so that 
+ * checking a transaction allocates as little as possible. The buffers grow 
+ * to fit the largest transaction seen on the thread and are reused from 
+ * then on. What still allocates is in the signature stage: encoding each 
+ * output's key (BigInteger.toByteArray), a new message buffer whenever 
+ * the signed length changes, and RSAKey.verifySignature itself.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+class ValidationContext {
+   
+   private static final ThreadLocal<ValidationContext> CONTEXT = new ThreadLocal<ValidationContext>() {
+      protected ValidationContext initialValue() {
+         return new ValidationContext();
+      }
+   };
+   
+   // Lookup key reused for every claimed output; never stored in a pool
+   private final UTXO probe = new UTXO(new byte[0], 0);
+   
+   // Outputs claimed by the transaction being validated, by input index
+   private Transaction.Output[] spentOutputs = new Transaction.Output[16];
+   
+   // Encoded outputs of the transaction whose signatures are being checked, 
+   // which every input signs, and the message for one input, rebuilt in 
+   // place for the next input of the same length
+   private byte[] outputData = new byte[256];
+   private int outputLength;
+   private byte[] message = new byte[0];
+   
+   // Open-addressing table of input indices for the duplicate check. A slot 
+   // is occupied only while stamps[slot] == stamp, so starting a new check 
+   // just bumps stamp instead of clearing the table
+   private int[] slots = new int[32];
+   private int[] stamps = new int[32];
+   private int stamp;
+   
+   // Returns the context of the calling thread
+   static ValidationContext get() {
+      return CONTEXT.get();
+   }
+   
+   // Returns the shared lookup key, pointed at output <index> of <txHash>
+   UTXO probe(byte[] txHash, int index) {
+      probe.reset(txHash, index);
+      return probe;
+   }
+   
+   // Returns a scratch array with room for at least <n> claimed outputs
+   Transaction.Output[] spentOutputs(int n) {
+      if (spentOutputs.length < n)
+         spentOutputs = new Transaction.Output[Math.max(n, 2 * spentOutputs.length)];
+      return spentOutputs;
+   }
+   
+   // Encodes the outputs of <tx> as Transaction.getRawDataToSign does; call 
+   // once per transaction, before signedData for its inputs
+   void beginSignatures(Transaction tx) {
+      outputLength = 0;
+      ArrayList<Transaction.Output> outputs = tx.getOutputs();
+      for (int i = 0; i < outputs.size(); i++) {
+         Transaction.Output output = outputs.get(i);
+         long bits = Double.doubleToRawLongBits(output.value);
+         ensureOutputCapacity(8);
+         for (int shift = 56; shift >= 0; shift -= 8)
+            outputData[outputLength++] = (byte) (bits >>> shift);
+         appendOutputData(output.address.getExponent().toByteArray());
+         appendOutputData(output.address.getModulus().toByteArray());
+      }
+   }
+   
+   // Returns the bytes input <index> of <tx> signs, equal to 
+   // tx.getRawDataToSign(index), in a buffer owned by this context that the 
+   // next call may overwrite; the outputs are the ones beginSignatures saw
+   byte[] signedData(Transaction tx, int index) {
+      Transaction.Input input = tx.getInput(index);
+      int hashLength = input.prevTxHash == null ? 0 : input.prevTxHash.length;
+      int length = hashLength + 4 + outputLength;
+      if (message.length != length)
+         message = new byte[length];
+      if (hashLength > 0)
+         System.arraycopy(input.prevTxHash, 0, message, 0, hashLength);
+      int outputIndex = input.outputIndex;
+      for (int k = 0; k < 4; k++)
+         message[hashLength + k] = (byte) (outputIndex >>> (24 - 8 * k));
+      System.arraycopy(outputData, 0, message, hashLength + 4, outputLength);
+      return message;
+   }
+   
+   private void appendOutputData(byte[] data) {
+      ensureOutputCapacity(data.length);
+      System.arraycopy(data, 0, outputData, outputLength, data.length);
+      outputLength += data.length;
+   }
+   
+   private void ensureOutputCapacity(int extra) {
+      if (outputLength + extra > outputData.length)
+         outputData = Arrays.copyOf(outputData, Math.max(outputLength + extra, 2 * outputData.length));
+   }
+   
+   // Returns true if two of <inputs> claim the same output
+   boolean hasDuplicateInput(ArrayList<Transaction.Input> inputs) {
+      int n = inputs.size();
+      if (slots.length < 2 * n) {
+         int capacity = Integer.highestOneBit(2 * n - 1) << 1;
+         slots = new int[capacity];
+         stamps = new int[capacity];
+         stamp = 0;
+      }
+      if (++stamp == 0) {
+         Arrays.fill(stamps, 0);
+         stamp = 1;
+      }
+      int mask = slots.length - 1;
+      for (int i = 0; i < n; i++) {
+         Transaction.Input input = inputs.get(i);
+         int hash = 31 * Arrays.hashCode(input.prevTxHash) + input.outputIndex;
+         int slot = (hash ^ (hash >>> 16)) & mask;
+         while (stamps[slot] == stamp) {
+            Transaction.Input other = inputs.get(slots[slot]);
+            if (other.outputIndex == input.outputIndex && Arrays.equals(other.prevTxHash, input.prevTxHash))
+               return true;
+            slot = (slot + 1) & mask;
+         }
+         stamps[slot] = stamp;
+         slots[slot] = i;
+      }
+      return false;
+   }
+}
@@ -0,0 +1,51 @@
+/* 
+ * ValidationResult.java
+ * 
+ * The outcome of validating a transaction against a UTXO pool. Validation
+ * runs in stages, cheapest first, and stops at the first stage that fails,
+ * so a rejected transaction reports the reason found by that stage.
+ */
+
+public enum ValidationResult {
+   
+   VALID(null),
+   
+   // a UTXO is claimed more than once by the transaction
+   DUPLICATE_INPUT(Stage.SYNTAX),
+   
+   // one of the transaction's output values is negative
+   NEGATIVE_OUTPUT(Stage.SYNTAX),
+   
+   // a claimed output is not in the UTXO pool
+   MISSING_INPUT(Stage.UTXO_LOOKUP),
+   
+   // the sum of the inputs is less than the sum of the outputs
+   INSUFFICIENT_INPUT(Stage.AMOUNTS),
+   
+   // the signature on some input does not verify against the claimed output
+   INVALID_SIGNATURE(Stage.SIGNATURES);
+   
+   // The validation stages, in the order they run
+   public enum Stage {
+      SYNTAX, UTXO_LOOKUP, AMOUNTS, SIGNATURES
+   }
+   
+   private final Stage stage;
+   
+   private ValidationResult(Stage stage) {
+      this.stage = stage;
+   }
+   
+   // Returns the stage that produced this result, or null for VALID
+   public Stage getStage() {
+      return stage;
+   }
+   
+   // Returns true if a transaction rejected for this reason can never become 
+   // valid. Only MISSING_INPUT depends on the pool: every other check reads 
+   // nothing but the transaction and the outputs it claims, and an output 
+   // never changes once its transaction exists
+   public boolean isPermanent() {
+      return this != VALID && this != MISSING_INPUT;
+   }
+}